@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.TreeSet;
 import java.util.Iterator;
 
@@ -53,6 +57,10 @@ public final class Interrupt {
 
 		enabled = false;
 		pending = new TreeSet<PendingInterrupt>();
+
+		if (Config.getBoolean("Interrupt.latencyTracer", false))
+			tracer = new LatencyTracer(Config.getInteger(
+					"Interrupt.latencyTracerSpans", 10));
 	}
 
 	/**
@@ -95,6 +103,14 @@ public final class Interrupt {
 	 */
 	public boolean setStatus(boolean status) {
 		boolean oldStatus = enabled;
+
+		if (tracer != null && oldStatus != status) {
+			if (status)
+				tracer.enabling();
+			else
+				tracer.disabling();
+		}
+
 		enabled = status;
 
 		if (oldStatus == false && status == true)
@@ -127,8 +143,8 @@ public final class Interrupt {
 		long time = privilege.stats.totalTicks + when;
 		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		Lib.debug(dbgInt, "Scheduling the ", type,
+				" interrupt handler at time = ", time);
 
 		pending.add(toOccur);
 	}
@@ -166,7 +182,7 @@ public final class Interrupt {
 		if (((PendingInterrupt) pending.first()).time > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		Lib.debug(dbgInt, "Invoking interrupt handlers at time = ", time);
 
 		while (!pending.isEmpty()
 				&& ((PendingInterrupt) pending.first()).time <= time) {
@@ -178,9 +194,20 @@ public final class Interrupt {
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  ", next.type);
+
+			if (Trace.enabled())
+				Trace.instant(Trace.interrupt, Trace.intern(next.type));
+
+			if (tracer != null) {
+				tracer.dispatched(next.type, time - next.time);
+				tracer.handling(next.type);
+			}
 
 			next.handler.run();
+
+			if (tracer != null)
+				tracer.enabling();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -200,6 +227,170 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
+	/**
+	 * Print the interrupt latency report, if the latency tracer is enabled.
+	 */
+	public void printLatencies() {
+		if (tracer != null)
+			tracer.print();
+	}
+
+	/**
+	 * Measures interrupts-disabled spans and interrupt dispatch latency.
+	 */
+	private class LatencyTracer {
+		LatencyTracer(int maxSpans) {
+			this.maxSpans = maxSpans;
+		}
+
+		/** Called as interrupts go from enabled to disabled. */
+		void disabling() {
+			// capture the stack before starting the clock, to not charge it
+			// to the span
+			start(new Throwable());
+		}
+
+		/**
+		 * Called as an interrupt handler is invoked, with interrupts disabled.
+		 * A handler that switches threads ends its span early, when the next
+		 * thread enables interrupts.
+		 */
+		void handling(String type) {
+			start(type + " interrupt handler");
+		}
+
+		/**
+		 * Called as interrupts go from disabled to enabled, and after each
+		 * interrupt handler returns.
+		 */
+		void enabling() {
+			if (disabledBy == null)
+				return;
+
+			long nanos = System.nanoTime() - disabledAt;
+			recordSpan(nanos, disabledAtTick, disabledBy);
+			disabledBy = null;
+		}
+
+		/**
+		 * Record that an interrupt handler was invoked <i>late</i> ticks after
+		 * the interrupt was due.
+		 */
+		void dispatched(String type, long late) {
+			long[] latency = latencies.get(type);
+			if (latency == null) {
+				latency = new long[3];
+				latencies.put(type, latency);
+			}
+
+			latency[0]++;
+			latency[1] += late;
+			latency[2] = Math.max(latency[2], late);
+		}
+
+		private void start(Object site) {
+			disabledBy = site;
+			disabledAtTick = privilege.stats.totalTicks;
+			disabledAt = System.nanoTime();
+		}
+
+		private void recordSpan(long nanos, long tick, Object site) {
+			numSpans++;
+			totalNanos += nanos;
+
+			// only look at the site of spans that could make the list
+			if (longest.size() == maxSpans
+					&& nanos <= longest.get(longest.size() - 1).nanos)
+				return;
+
+			String where = (site instanceof Throwable) ? callSite((Throwable) site)
+					: (String) site;
+
+			Span span = null;
+			for (Span s : longest) {
+				if (s.where.equals(where))
+					span = s;
+			}
+
+			if (span == null) {
+				if (longest.size() == maxSpans)
+					longest.remove(longest.size() - 1);
+				span = new Span(where);
+				longest.add(span);
+			} else if (nanos <= span.nanos) {
+				return;
+			}
+
+			span.nanos = nanos;
+			span.tick = tick;
+			Collections.sort(longest, new Comparator<Span>() {
+				public int compare(Span a, Span b) {
+					return a.nanos > b.nanos ? -1 : a.nanos < b.nanos ? 1 : 0;
+				}
+			});
+		}
+
+		/**
+		 * Return the frames of a stack outside this class, one per line.
+		 */
+		private String callSite(Throwable t) {
+			StringBuffer buf = new StringBuffer();
+			int frames = 0;
+
+			for (StackTraceElement frame : t.getStackTrace()) {
+				if (frame.getClassName().startsWith(Interrupt.class.getName()))
+					continue;
+				if (frames++ == maxFrames)
+					break;
+				buf.append("\n      at " + frame);
+			}
+
+			return buf.toString();
+		}
+
+		void print() {
+			System.out.println("Interrupts disabled: " + numSpans
+					+ " spans, total " + totalNanos / 1000 + " us");
+
+			for (Span span : longest)
+				System.out.println("    " + span.nanos / 1000 + " us at tick "
+						+ span.tick + (span.where.startsWith("\n") ? "" : " in ")
+						+ span.where);
+
+			System.out.println("Interrupt dispatch latency (ticks):");
+			ArrayList<String> types = new ArrayList<String>(latencies.keySet());
+			Collections.sort(types);
+			for (String type : types) {
+				long[] latency = latencies.get(type);
+				System.out.println("    " + type + ": count " + latency[0]
+						+ ", avg " + latency[1] / latency[0] + ", max "
+						+ latency[2]);
+			}
+		}
+
+		private class Span {
+			Span(String where) {
+				this.where = where;
+			}
+
+			String where;
+			long nanos, tick;
+		}
+
+		private int maxSpans;
+		private static final int maxFrames = 5;
+
+		/** The stack or handler that started the current span, if any. */
+		private Object disabledBy = null;
+		private long disabledAt, disabledAtTick;
+
+		private long numSpans = 0, totalNanos = 0;
+		/** The longest span from each of the worst sites, longest first. */
+		private ArrayList<Span> longest = new ArrayList<Span>();
+		/** Count, total and maximum dispatch latency by interrupt type. */
+		private HashMap<String, long[]> latencies = new HashMap<String, long[]>();
+	}
+
 	private class PendingInterrupt implements Comparable {
 		PendingInterrupt(long time, String type, Runnable handler) {
 			this.time = time;
@@ -238,6 +429,8 @@ public final class Interrupt {
 	private boolean enabled;
 	private TreeSet<PendingInterrupt> pending;
 
+	private LatencyTracer tracer = null;
+
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
@@ -141,6 +141,80 @@ public final class Lib {
 			System.out.println(message);
 	}
 
+	/**
+	 * Print <i>message</i> followed by <i>value</i> if <i>flag</i> was
+	 * enabled. Unlike concatenating them at the call site, nothing is built,
+	 * and <i>value</i>'s <tt>toString()</tt> is not called, unless the flag is
+	 * enabled.
+	 * 
+	 * @param flag
+	 *            the debug flag that must be set to print this message.
+	 * @param message
+	 *            the start of the debug message.
+	 * @param value
+	 *            the value to print after <i>message</i>.
+	 */
+	public static void debug(char flag, String message, Object value) {
+		if (test(flag))
+			System.out.println(message + value);
+	}
+
+	/**
+	 * Print <i>message</i> followed by <i>value</i> if <i>flag</i> was
+	 * enabled. Nothing is built, or boxed, unless the flag is enabled.
+	 * 
+	 * @param flag
+	 *            the debug flag that must be set to print this message.
+	 * @param message
+	 *            the start of the debug message.
+	 * @param value
+	 *            the value to print after <i>message</i>.
+	 */
+	public static void debug(char flag, String message, long value) {
+		if (test(flag))
+			System.out.println(message + value);
+	}
+
+	/**
+	 * Print <i>message1</i>, <i>value1</i>, <i>message2</i> and <i>value2</i>
+	 * if <i>flag</i> was enabled. Nothing is built unless the flag is enabled.
+	 * 
+	 * @param flag
+	 *            the debug flag that must be set to print this message.
+	 */
+	public static void debug(char flag, String message1, Object value1,
+			String message2, Object value2) {
+		if (test(flag))
+			System.out.println(message1 + value1 + message2 + value2);
+	}
+
+	/**
+	 * Print <i>message1</i>, <i>value1</i>, <i>message2</i> and <i>value2</i>
+	 * if <i>flag</i> was enabled. Nothing is built unless the flag is enabled.
+	 * 
+	 * @param flag
+	 *            the debug flag that must be set to print this message.
+	 */
+	public static void debug(char flag, String message1, Object value1,
+			String message2, long value2) {
+		if (test(flag))
+			System.out.println(message1 + value1 + message2 + value2);
+	}
+
+	/**
+	 * Print <i>message1</i>, <i>value1</i>, <i>message2</i> and <i>value2</i>
+	 * if <i>flag</i> was enabled. Nothing is built, or boxed, unless the flag
+	 * is enabled.
+	 * 
+	 * @param flag
+	 *            the debug flag that must be set to print this message.
+	 */
+	public static void debug(char flag, String message1, long value1,
+			String message2, long value2) {
+		if (test(flag))
+			System.out.println(message1 + value1 + message2 + value2);
+	}
+
 	/**
 	 * Tests if <i>flag</i> was enabled on the command line.
 	 * 
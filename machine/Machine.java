@@ -50,6 +50,7 @@ public final class Machine {
 
 		TCB.givePrivilege(privilege);
 		privilege.stats = stats;
+		Trace.initialize(privilege);
 
 		securityManager.enable();
 		createDevices();
@@ -99,6 +100,8 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		interrupt.printLatencies();
+		Trace.export();
 		terminate();
 	}
 
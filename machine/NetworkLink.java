@@ -173,6 +173,7 @@ public class NetworkLink {
 					incomingPacket = new Packet(incomingBytes);
 
 					privilege.stats.numPacketsReceived++;
+					Trace.instant(Trace.packetReceive, incomingPacket.srcLink);
 				} catch (MalformedPacketException e) {
 				}
 			}
@@ -285,6 +286,8 @@ public class NetworkLink {
 	 *            the packet to send.
 	 */
 	public void send(Packet pkt) {
+		Trace.instant(Trace.packetSend, pkt.dstLink);
+
 		if (outgoingPacket == null)
 			scheduleSendInterrupt();
 
@@ -343,6 +343,7 @@ public final class Processor {
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
+				Trace.instant(Trace.tlbMiss, vpn);
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
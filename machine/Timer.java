@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.TreeSet;
+
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
  * clock ticks. This means that it can be used for implementing time-slicing, or
@@ -13,6 +15,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The timer can also be switched to one-shot mode, in which it stops
+ * interrupting periodically and instead interrupts once at whatever time the
+ * kernel last programmed with <tt>setNextInterrupt()</tt>.
  */
 public final class Timer {
 	/**
@@ -62,8 +69,101 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Get the number of clock ticks spent executing user programs.
+	 * 
+	 * @return the number of user clock ticks since Nachos started.
+	 */
+	public long getUserTime() {
+		return privilege.stats.userTicks;
+	}
+
+	/**
+	 * Get the number of clock ticks spent in the kernel.
+	 * 
+	 * @return the number of kernel clock ticks since Nachos started.
+	 */
+	public long getKernelTime() {
+		return privilege.stats.kernelTicks;
+	}
+
+	/**
+	 * Switch the timer to one-shot mode. The periodic interrupt stops, and the
+	 * timer only interrupts at the time programmed with
+	 * <tt>setNextInterrupt()</tt>. The timer cannot be switched back to
+	 * periodic mode.
+	 */
+	public void setOneShot() {
+		oneShot = true;
+	}
+
+	/**
+	 * Tests whether the timer is in one-shot mode.
+	 * 
+	 * @return <tt>true</tt> if the timer is in one-shot mode.
+	 */
+	public boolean isOneShot() {
+		return oneShot;
+	}
+
+	/**
+	 * Program the timer to interrupt once at the specified time, replacing any
+	 * previously programmed time. A time that has already passed causes an
+	 * interrupt on the next tick. The timer must be in one-shot mode.
+	 * 
+	 * @param time
+	 *            the time at which to interrupt, or -1 to cancel the pending
+	 *            interrupt.
+	 */
+	public void setNextInterrupt(long time) {
+		Lib.assertTrue(oneShot);
+
+		nextInterrupt = time;
+		if (time >= 0)
+			arm(Math.max(time, getTime() + 1));
+	}
+
+	/**
+	 * Make sure a hardware interrupt is scheduled no later than the specified
+	 * time. An interrupt that arrives before the programmed time just arms the
+	 * next one, so reprogramming never needs to cancel a scheduled interrupt.
+	 */
+	private void arm(final long time) {
+		if (!armed.isEmpty() && armed.first() <= time)
+			return;
+
+		armed.add(time);
+		privilege.interrupt.schedule(time - getTime(), "timer", new Runnable() {
+			public void run() {
+				oneShotInterrupt(time);
+			}
+		});
+	}
+
+	private void oneShotInterrupt(long time) {
+		armed.remove(time);
+
+		if (nextInterrupt < 0)
+			return;
+
+		if (getTime() >= nextInterrupt) {
+			nextInterrupt = -1;
+			deliverInterrupt();
+		} else {
+			arm(nextInterrupt);
+		}
+	}
+
 	private void timerInterrupt() {
+		// the periodic interrupt stops once the timer is in one-shot mode
+		if (oneShot)
+			return;
+
 		scheduleInterrupt();
+		deliverInterrupt();
+	}
+
+	private void deliverInterrupt() {
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
@@ -84,6 +184,9 @@ public final class Timer {
 	}
 
 	private long lastTimerInterrupt;
+	private boolean oneShot = false;
+	private long nextInterrupt = -1;
+	private TreeSet<Long> armed = new TreeSet<Long>();
 	private Runnable timerInterrupt;
 	private Runnable autoGraderInterrupt;
 
@@ -0,0 +1,287 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A fixed-size ring buffer of typed trace events, each stamped with the
+ * simulated time and the thread that was running. Recording an event stores a
+ * few numbers in preallocated arrays, so it is cheap enough to leave in hot
+ * paths; once the buffer is full, the oldest events are overwritten.
+ *
+ * <p>
+ * Tracing is off unless <tt>Trace.enabled</tt> is set. The buffer holds
+ * <tt>Trace.capacity</tt> events (65536 by default) and is written to
+ * <tt>Trace.file</tt> (<tt>trace.json</tt> by default) when the machine halts,
+ * in the Chrome trace event format, which chrome://tracing and Perfetto can
+ * display. One tick of simulated time is shown as one microsecond.
+ *
+ * <p>
+ * Events are either instants, or spans with a begin and an end event on the
+ * same thread. The machine does not know about kernel threads, so the kernel
+ * reports each context switch with <tt>switchThread()</tt>, and later events
+ * are charged to the new thread.
+ */
+public final class Trace {
+	/** A thread running on the CPU; a span. */
+	public static final int run = 0;
+	/** An interrupt handler invoked; an instant, the argument is its type. */
+	public static final int interrupt = 1;
+	/** A system call; a span, the argument is the call number. */
+	public static final int syscall = 2;
+	/** A TLB miss; an instant, the argument is the virtual page. */
+	public static final int tlbMiss = 3;
+	/** A page fault handled by the kernel; a span, the argument is the page. */
+	public static final int pageFault = 4;
+	/** A page read from swap; a span, the argument is the virtual page. */
+	public static final int swapIn = 5;
+	/** A page written to swap; a span, the argument is the virtual page. */
+	public static final int swapOut = 6;
+	/** A packet sent; an instant, the argument is the destination link. */
+	public static final int packetSend = 7;
+	/** A packet received; an instant, the argument is the source link. */
+	public static final int packetReceive = 8;
+	/** A wait for a busy lock; a span, the argument is the lock's name. */
+	public static final int lockWait = 9;
+
+	/** The names of the event types, for export. */
+	private static final String[] eventNames = { "run", "interrupt",
+			"syscall", "TLB miss", "page fault", "swap in", "swap out",
+			"packet send", "packet receive", "lock wait" };
+	/** Event types whose argument is an interned string. */
+	private static final boolean[] stringArgument = { false, true, false,
+			false, false, false, false, false, false, true };
+
+	private static final byte phaseBegin = 'B', phaseEnd = 'E',
+			phaseInstant = 'i';
+
+	private Trace() {
+	}
+
+	/**
+	 * Set up tracing, if it is enabled. Called once by <tt>Machine</tt> after
+	 * the configuration is loaded.
+	 */
+	static void initialize(Privilege privilege) {
+		if (!Config.getBoolean("Trace.enabled", false))
+			return;
+
+		Trace.privilege = privilege;
+
+		int capacity = Config.getInteger("Trace.capacity", 65536);
+		Lib.assertTrue(capacity > 0);
+
+		times = new long[capacity];
+		types = new byte[capacity];
+		phases = new byte[capacity];
+		threads = new int[capacity];
+		arguments = new int[capacity];
+
+		fileName = Config.getString("Trace.file", "trace.json");
+		enabled = true;
+	}
+
+	/**
+	 * Tests whether tracing is enabled.
+	 *
+	 * @return <tt>true</tt> if events are being recorded.
+	 */
+	public static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record the start of a span on the current thread.
+	 *
+	 * @param type
+	 *            the event type.
+	 * @param argument
+	 *            the event argument.
+	 */
+	public static void begin(int type, int argument) {
+		if (enabled)
+			record(type, phaseBegin, currentThread, argument);
+	}
+
+	/**
+	 * Record the end of a span on the current thread.
+	 *
+	 * @param type
+	 *            the event type.
+	 * @param argument
+	 *            the event argument.
+	 */
+	public static void end(int type, int argument) {
+		if (enabled)
+			record(type, phaseEnd, currentThread, argument);
+	}
+
+	/**
+	 * Record an instant event on the current thread.
+	 *
+	 * @param type
+	 *            the event type.
+	 * @param argument
+	 *            the event argument.
+	 */
+	public static void instant(int type, int argument) {
+		if (enabled)
+			record(type, phaseInstant, currentThread, argument);
+	}
+
+	/**
+	 * Record a context switch. The current thread's run span ends, the new
+	 * thread's begins, and later events are charged to the new thread.
+	 *
+	 * @param thread
+	 *            an ID identifying the thread about to run.
+	 */
+	public static void switchThread(int thread) {
+		if (!enabled || thread == currentThread)
+			return;
+
+		record(run, phaseEnd, currentThread, 0);
+		currentThread = thread;
+		record(run, phaseBegin, currentThread, 0);
+	}
+
+	/**
+	 * Give a thread a name, to label its timeline in the exported trace.
+	 *
+	 * @param thread
+	 *            the ID of the thread.
+	 * @param name
+	 *            the name of the thread.
+	 */
+	public static void nameThread(int thread, String name) {
+		if (enabled)
+			threadNames.put(thread, name);
+	}
+
+	/**
+	 * Return a number standing for a string, such as a lock name, for use as
+	 * an event argument. Returns the same number each time it is called with
+	 * equal strings. Intern strings once, ahead of recording, where possible.
+	 *
+	 * @param s
+	 *            the string to intern.
+	 * @return a number standing for the string, or -1 if tracing is not
+	 *         enabled.
+	 */
+	public static int intern(String s) {
+		if (!enabled)
+			return -1;
+
+		Integer n = internedIds.get(s);
+		if (n == null) {
+			n = interned.size();
+			interned.add(s);
+			internedIds.put(s, n);
+		}
+		return n;
+	}
+
+	private static void record(int type, byte phase, int thread, int argument) {
+		times[next] = privilege.stats.totalTicks;
+		types[next] = (byte) type;
+		phases[next] = phase;
+		threads[next] = thread;
+		arguments[next] = argument;
+
+		next = (next + 1) % times.length;
+		numRecorded++;
+	}
+
+	/**
+	 * Write the buffered events to the trace file. Called by <tt>Machine</tt>
+	 * when it halts.
+	 */
+	static void export() {
+		if (!enabled)
+			return;
+
+		enabled = false;
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					PrintWriter out = new PrintWriter(new FileWriter(fileName));
+					write(out);
+					out.close();
+				} catch (IOException e) {
+					System.out.println("Trace: could not write " + fileName);
+				}
+			}
+		});
+	}
+
+	private static void write(PrintWriter out) {
+		int count = (int) Math.min(numRecorded, times.length);
+		int first = (next - count + times.length) % times.length;
+
+		out.print("{\"traceEvents\":[");
+		String separator = "\n";
+
+		for (Integer thread : threadNames.keySet()) {
+			out.print(separator
+					+ "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":"
+					+ thread + ",\"args\":{\"name\":\""
+					+ escape(threadNames.get(thread)) + "\"}}");
+			separator = ",\n";
+		}
+
+		for (int i = 0; i < count; i++) {
+			int e = (first + i) % times.length;
+			int type = types[e];
+
+			String name = eventNames[type];
+			String argument = Integer.toString(arguments[e]);
+			if (stringArgument[type] && arguments[e] >= 0) {
+				argument = "\"" + escape(interned.get(arguments[e])) + "\"";
+				// an interrupt is best labelled by its handler
+				if (type == interrupt)
+					name = escape(interned.get(arguments[e]));
+			}
+
+			out.print(separator + "{\"name\":\"" + name + "\",\"cat\":\""
+					+ eventNames[type] + "\",\"ph\":\"" + (char) phases[e]
+					+ "\",\"ts\":" + times[e] + ",\"pid\":0,\"tid\":"
+					+ threads[e]);
+			if (phases[e] == phaseInstant)
+				out.print(",\"s\":\"t\"");
+			if (type != run)
+				out.print(",\"args\":{\"arg\":" + argument + "}");
+			out.print("}");
+			separator = ",\n";
+		}
+
+		out.println("\n],\"otherData\":{\"dropped\":"
+				+ (numRecorded - count) + "}}");
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static boolean enabled = false;
+	private static Privilege privilege;
+	private static String fileName;
+
+	private static long[] times;
+	private static byte[] types, phases;
+	private static int[] threads, arguments;
+	/** Index at which the next event is recorded. */
+	private static int next = 0;
+	private static long numRecorded = 0;
+
+	private static int currentThread = 0;
+	private static HashMap<Integer, String> threadNames = new HashMap<Integer, String>();
+
+	private static ArrayList<String> interned = new ArrayList<String>();
+	private static HashMap<String, Integer> internedIds = new HashMap<String, Integer>();
+}
@@ -15,7 +15,7 @@ import nachos.threads.Lock;
 
 class Connection {
 	
-	private Lock stateLock = new Lock();
+	private Lock stateLock = new Lock("Connection.stateLock");
 	private Condition connectionEstablished;
 	private NTPState currentState = NTPState.CLOSED;
 	private boolean calledClose = false;
@@ -31,7 +31,8 @@ class Connection {
 		destAddress = _destAddress;
 		destPort = _destPort;
 		srcPort = _srcPort;
-		connectionEstablished = new Condition(stateLock);
+		connectionEstablished = new Condition(stateLock,
+				"Connection.connectionEstablished");
 	}
 	
 	/**
@@ -100,15 +101,15 @@ class Connection {
 			currentState.synack(this, msg);
 			break;
 		case MailMessage.DATA:
-			Lib.debug(networkDebugFlag,"Receiving DATA: " + msg.sequence + " with content length " + msg.contents.length);
+			Lib.debug(networkDebugFlag,"Receiving DATA: ", msg.sequence, " with content length ", msg.contents.length);
 			currentState.data(this, msg);
 			break;
 		case MailMessage.ACK:
-			Lib.debug(networkDebugFlag,"Receiving ack for " + msg.sequence);
+			Lib.debug(networkDebugFlag,"Receiving ack for ", msg.sequence);
 			currentState.ack(this, msg);
 			break;
 		case MailMessage.STP:
-			Lib.debug(networkDebugFlag,"Receiving STP with " + msg.sequence);
+			Lib.debug(networkDebugFlag,"Receiving STP with ", msg.sequence);
 			receiveWindow.stopAt(msg.sequence);
 			currentState.stp(this, msg);
 			break;
@@ -189,7 +190,7 @@ class Connection {
 	}
 	/** Ack a packet */
 	private void transmitAck(int sequence) {
-		Lib.debug(networkDebugFlag,"Sending ACK for " + sequence);
+		Lib.debug(networkDebugFlag,"Sending ACK for ", sequence);
 		((NetKernel) Kernel.kernel).postOffice.enqueue(makeMessage(MailMessage.ACK, sequence, MailMessage.EMPTY_CONTENT).packet);
 	}
 	private void transmitStp() {
@@ -201,7 +202,7 @@ class Connection {
 			byte[] toSend = sendBuffer.dequeue(Math.min(MailMessage.maxContentsLength, sendBuffer.size()));
 			MailMessage msg = sendWindow.add(toSend);
 			if (msg != null) {
-				Lib.debug(networkDebugFlag,"Sending DATA with sequence " + msg.sequence + " and length " + msg.contents.length);
+				Lib.debug(networkDebugFlag,"Sending DATA with sequence ", msg.sequence, " and length ", msg.contents.length);
 				((NetKernel) Kernel.kernel).postOffice.enqueue(msg.packet);
 			}
 			else {
@@ -347,7 +348,7 @@ class Connection {
 				if (c.receiveWindow.add(msg))
 					c.transmitAck(msg.sequence);
 				else
-					Lib.debug(networkDebugFlag,"Dropped DATA packet " + msg.sequence);
+					Lib.debug(networkDebugFlag,"Dropped DATA packet ", msg.sequence);
 			}
 			
 			@Override
@@ -446,7 +447,7 @@ class Connection {
 				if (c.receiveWindow.add(msg))
 					c.transmitAck(msg.sequence);
 				else
-					Lib.debug(networkDebugFlag,"Dropped DATA packet " + msg.sequence);
+					Lib.debug(networkDebugFlag,"Dropped DATA packet ", msg.sequence);
 			}
 			
 			@Override
@@ -592,7 +593,8 @@ class Connection {
 				if (m != null)
 					lst.add(m.packet);
 			}
-			Lib.debug(networkDebugFlag,"  Window has " + lst.size() + " packets");
+			if (Lib.test(networkDebugFlag))
+				Lib.debug(networkDebugFlag,"  Window has " + lst.size() + " packets");
 			return lst;
 		}
 		
@@ -55,8 +55,8 @@ public class NetKernel extends VMKernel {
 	 */
 	static class SocketPostOffice {
 		SocketPostOffice() {
-			nothingToSend = new Condition(sendLock);
-			terminationCondition = new Condition(terminationLock);
+			terminationCondition = new Condition(terminationLock,
+					"SocketPostOffice.terminationCondition");
 
 			//Set up the delivery thread interrupt handlers
 			Machine.networkLink().setInterruptHandlers(new Runnable() {
@@ -70,14 +70,8 @@ public class NetKernel extends VMKernel {
 				}
 			});
 
-			//Set up the postal worker threads
-			KThread postalDeliveryThread = new KThread(
-					new Runnable() {
-						public void run() {
-							postalDelivery();
-						}
-					}
-			), postalSendThread = new KThread(
+			//Set up the postal worker threads; delivery runs on the kernel work queue
+			KThread postalSendThread = new KThread(
 					new Runnable() {
 						public void run() {
 							send();
@@ -91,7 +85,6 @@ public class NetKernel extends VMKernel {
 					}
 			);
 
-			postalDeliveryThread.fork();
 			postalSendThread.fork();
 			timerInterruptThread.fork();
 		}
@@ -161,7 +154,8 @@ public class NetKernel extends VMKernel {
 
 		}
 
-		private Lock terminationLock = new Lock();
+		private Lock terminationLock = new Lock(
+				"SocketPostOffice.terminationLock");
 		private Condition terminationCondition;
 
 		/**
@@ -182,10 +176,7 @@ public class NetKernel extends VMKernel {
 		 * @param p
 		 */
 		void enqueue(Packet p) {
-			sendLock.acquire();
-			sendQueue.add(p);
-			nothingToSend.wake();
-			sendLock.release();
+			sendQueue.send(p);
 		}
 
 		/**
@@ -194,74 +185,74 @@ public class NetKernel extends VMKernel {
 		 * We can switch to an array if that is more convenient.
 		 */
 		void enqueue(List<Packet> ps) {
-			sendLock.acquire();
-			sendQueue.addAll(ps);
-			nothingToSend.wake();
-			sendLock.release();
+			sendQueue.sendAll(ps);
 		}
 
 		/**
-		 * The method for delivering the packets to the appropriate Sockets.
+		 * The method for delivering a packet to the appropriate Socket. Runs on
+		 * a kernel worker, after every earlier packet between the same pair of
+		 * ports has been delivered.
 		 */
-		private void postalDelivery() {
-			MailMessage pktMsg = null;
+		private void postalDelivery(MailMessage pktMsg) {
 			Connection connection = null;
-			while (true) {
-				messageReceived.P();
 
-				try {
-					pktMsg = new MailMessage(Machine.networkLink().receive());
-				} catch (MalformedPacketException e) {
-					continue;//Just drop the packet
-				}
+			if ((connection = connectionMap.get(pktMsg.dstPort, pktMsg.packet.srcLink, pktMsg.srcPort)) != null)
+				connection.packet(pktMsg);
+			else if (pktMsg.flags == MailMessage.SYN) {
+				connection = new Connection(pktMsg.packet.srcLink, pktMsg.srcPort, pktMsg.dstPort);
+				connection.packet(pktMsg);
 
-				if ((connection = connectionMap.get(pktMsg.dstPort, pktMsg.packet.srcLink, pktMsg.srcPort)) != null)
-					connection.packet(pktMsg);
-				else if (pktMsg.flags == MailMessage.SYN) {
-					connection = new Connection(pktMsg.packet.srcLink, pktMsg.srcPort, pktMsg.dstPort);
-					connection.packet(pktMsg);
+				//Put it in the connectionMap
+				connectionMap.put(connection);
 
-					//Put it in the connectionMap
-					connectionMap.put(connection);
-
-					//Put it in the awaiting connection map
-					awaitingConnectionMap.addWaiting(connection);
-				} else if (pktMsg.flags == MailMessage.FIN) {
-					try {
-						enqueue(new MailMessage(pktMsg.packet.srcLink, pktMsg.srcPort, pktMsg.packet.dstLink, pktMsg.dstPort, MailMessage.FIN | MailMessage.ACK, 0, MailMessage.EMPTY_CONTENT).packet);
-					} catch (MalformedPacketException e) {
-					}
+				//Put it in the awaiting connection map
+				awaitingConnectionMap.addWaiting(connection);
+			} else if (pktMsg.flags == MailMessage.FIN) {
+				try {
+					enqueue(new MailMessage(pktMsg.packet.srcLink, pktMsg.srcPort, pktMsg.packet.dstLink, pktMsg.dstPort, MailMessage.FIN | MailMessage.ACK, 0, MailMessage.EMPTY_CONTENT).packet);
+				} catch (MalformedPacketException e) {
 				}
 			}
 		}
 
 		/**
 		 * Called when a packet has arrived and can be dequeued from the network
-		 * link.
+		 * link. Takes the packet off the link right away, so the link can
+		 * receive the next one, and defers its delivery to the work queue.
+		 * Packets for the same connection are delivered in the order they
+		 * arrived.
 		 */
 		private void receiveInterrupt() {
-			messageReceived.V();
+			final MailMessage pktMsg;
+			try {
+				pktMsg = new MailMessage(Machine.networkLink().receive());
+			} catch (MalformedPacketException e) {
+				return;//Just drop the packet
+			}
+
+			SocketKey key = new SocketKey(pktMsg.dstPort, pktMsg.packet.srcLink, pktMsg.srcPort);
+
+			workQueue.submit(key, new Runnable() {
+				public void run() {
+					postalDelivery(pktMsg);
+				}
+			});
 		}
 
 		/**
 		 * The method for sending packets over the network link, from a queue.
 		 */
 		private void send() {
-			Packet p = null;
+			LinkedList<Packet> batch = new LinkedList<Packet>();
 			while (true) {
-				sendLock.acquire();
-
-				//MESA Style waiting
-				while (sendQueue.isEmpty())
-					nothingToSend.sleep();
+				//Take everything queued so far in one go
+				sendQueue.drainTo(batch);
 
-				//Dequeue the packet
-				p = sendQueue.poll();
-				sendLock.release();
-
-				//Now work on sending the packet
-				Machine.networkLink().send(p);
-				messageSent.P();
+				//Now work on sending the packets, one at a time on the link
+				while (!batch.isEmpty()) {
+					Machine.networkLink().send(batch.removeFirst());
+					messageSent.P();
+				}
 			}
 		}
 
@@ -293,14 +284,15 @@ public class NetKernel extends VMKernel {
 		private ConnectionMap connectionMap = new ConnectionMap();
 		private AwaitingConnectionMap awaitingConnectionMap = new AwaitingConnectionMap();
 
-		private Semaphore messageReceived = new Semaphore(0);
-		private Semaphore messageSent = new Semaphore(0);
-		private Lock sendLock = new Lock();
+		private Semaphore messageSent = new Semaphore(0,
+				"SocketPostOffice.messageSent");
 
-		/** A condition variable to wait on in case there is nothing to send. */
-		private Condition nothingToSend;
+		/** Packets waiting for the send thread. */
+		private Channel<Packet> sendQueue = new Channel<Packet>(sendQueueCapacity,
+				"SocketPostOffice.sendQueue");
 
-		private LinkedList<Packet> sendQueue = new LinkedList<Packet>();
+		/** The most packets that may wait to be sent before senders block. */
+		private static final int sendQueueCapacity = 256;
 	}
 
 	/**
@@ -308,10 +300,10 @@ public class NetKernel extends VMKernel {
 	 */
 	private static class ConnectionMap {
 		void retransmitAll() {
-			lock.acquire();
+			lock.acquireRead();
 			for (Connection c : map.values())
 				c.retransmit();
-			lock.release();
+			lock.releaseRead();
 		}
 
 		Connection remove(Connection conn) {
@@ -319,9 +311,9 @@ public class NetKernel extends VMKernel {
 		}
 
 		boolean isEmpty() {
-			lock.acquire();
+			lock.acquireRead();
 			boolean b = map.isEmpty();
-			lock.release();
+			lock.releaseRead();
 			return b;
 		}
 
@@ -329,35 +321,37 @@ public class NetKernel extends VMKernel {
 		 * Closes all connections and removes them from this map.
 		 */
 		void shutdown() {
-			lock.acquire();
+			lock.acquireWrite();
 			for (Connection c : map.values())
 				c.close();
-			lock.release();
+			lock.releaseWrite();
 		}
 
 		Connection get(int sourcePort, int destinationAddress, int destinationPort) {
-			lock.acquire();
+			lock.acquireRead();
 			Connection c = map.get(new SocketKey(sourcePort,destinationAddress,destinationPort));
-			lock.release();
+			lock.releaseRead();
 			return c;
 		}
 
 		void put(Connection c) {
-			lock.acquire();
+			lock.acquireWrite();
 			map.put(new SocketKey(c.srcPort,c.destAddress,c.destPort),c);
-			lock.release();
+			lock.releaseWrite();
 		}
 
 		Connection remove(int sourcePort, int destinationAddress, int destinationPort) {
-			lock.acquire();
+			lock.acquireWrite();
 			Connection c = map.remove(new SocketKey(sourcePort,destinationAddress,destinationPort));
-			lock.release();
+			lock.releaseWrite();
 			return c;
 		}
 
 		private HashMap<SocketKey, Connection> map = new HashMap<SocketKey, Connection>();
 		
-		private Lock lock = new Lock();
+		/** Lookups on every received packet share this; changes hold it alone. */
+		private ReadWriteLock lock = new ReadWriteLock("ConnectionMap.lock",
+				true);
 	}
 
 	/**
@@ -426,7 +420,7 @@ public class NetKernel extends VMKernel {
 
 		private HashMap<Integer,HashMap<SocketKey,Connection>> map = new HashMap<Integer,HashMap<SocketKey,Connection>>();
 		
-		private Lock lock = new Lock();
+		private Lock lock = new Lock("AwaitingConnectionMap.lock");
 	}
 
 	private static class SocketKey {
@@ -6,6 +6,10 @@
 #define MAXARGSIZE	16
 #define MAXARGS		16
 
+/* Where the shell keeps its own stdin and stdout while it starts a pipeline. */
+#define SAVEDSTDIN	14
+#define SAVEDSTDOUT	15
+
 /**
  * tokenizeCommand
  *
@@ -108,10 +112,83 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+/**
+ * runpipeline
+ *
+ * Runs the commands in argv, separated by "|" tokens, each in a new process, with
+ * the stdout of each command connected to the stdin of the next by a pipe. The
+ * first command reads the shell's stdin, and the last writes the shell's stdout.
+ *
+ * Returns the process ID of the last command, or -1 on error.
+ */
+static int runpipeline(int argc, char *argv[]) {
+    char prog[BUFFERSIZE];
+    int fds[2];
+    int start, end, pid = -1, in = -1;
+
+    dup2(0, SAVEDSTDIN);
+    dup2(1, SAVEDSTDOUT);
+
+    for (start = 0; start <= argc; start = end + 1) {
+	for (end = start; end < argc && strcmp(argv[end], "|") != 0; end++)
+	    ;
+
+	if (end == start) {
+	    printf("Invalid null command.\n");
+	    pid = -1;
+	    break;
+	}
+
+	/* this command reads what the previous one writes */
+	if (in != -1) {
+	    dup2(in, 0);
+	    close(in);
+	    in = -1;
+	}
+
+	/* and writes what the next one reads */
+	if (end < argc) {
+	    if (pipe(fds) == -1) {
+		dup2(SAVEDSTDIN, 0);
+		printf("pipe failed.\n");
+		pid = -1;
+		break;
+	    }
+	    dup2(fds[1], 1);
+	    close(fds[1]);
+	    in = fds[0];
+	}
+
+	strcpy(prog, argv[start]);
+	strcat(prog, ".coff");
+
+	pid = exec(prog, end - start, argv + start);
+
+	/* only the new process keeps the pipes as its stdin and stdout */
+	dup2(SAVEDSTDIN, 0);
+	dup2(SAVEDSTDOUT, 1);
+
+	if (pid == -1) {
+	    printf("%s: exec failed.\n", argv[start]);
+	    break;
+	}
+    }
+
+    if (in != -1)
+	close(in);
+
+    dup2(SAVEDSTDIN, 0);
+    dup2(SAVEDSTDOUT, 1);
+    close(SAVEDSTDIN);
+    close(SAVEDSTDOUT);
+
+    return pid;
+}
+
 void runline(char* line) {
     int pid, background, status;
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[BUFFERSIZE];
     char *argv[MAXARGS];
 
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
@@ -159,14 +236,9 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
-
-	    pid = exec(prog, argc, argv);
-	    if (pid == -1) {
-		printf("%s: exec failed.\n", argv[0]);
+	    pid = runpipeline(argc, argv);
+	    if (pid == -1)
 		return;
-	    }
 	}
 
 	if (!background) {
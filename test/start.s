@@ -67,3 +67,10 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(io_setup, syscallIoSetup)
+	SYSCALLSTUB(io_enter, syscallIoEnter)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup2, syscallDup2)
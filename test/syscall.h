@@ -25,6 +25,13 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallFork		15
+#define syscallIoSetup		16
+#define syscallIoEnter		17
+#define syscallPipe		18
+#define syscallDup2		19
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -71,8 +78,9 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and starts with file descriptors 0 and 1 (stdin and stdout)
+ * referring to the same files as the caller's, and no others. Use dup2() to
+ * run a child with a pipe as its stdin or stdout.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -90,6 +98,19 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a new process that is a copy of the current process, running the
+ * same program from the same point, with the same memory contents and open
+ * files. Memory is shared until one of the processes writes to it, so the
+ * copy is cheap. Open files, including their file positions, are shared;
+ * memory mapped files are not inherited. The new process is a child of the
+ * current process, which can join() it.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if an
+ * error occurred.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -219,6 +240,128 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Create a pipe: a one-way stream, held in a buffer in the kernel, through
+ * which processes can pass data without going through a file on disk. The
+ * file descriptor of the read end is stored in fds[0], and that of the write
+ * end in fds[1].
+ *
+ * read() from a pipe waits until it holds data, then returns as much as is
+ * available, up to count. Once every file descriptor for the write end is
+ * closed and the pipe is empty, read() returns 0. write() to a pipe waits for
+ * room until all count bytes are written, and fails once every file
+ * descriptor for the read end is closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Make newfd refer to the same file or stream as fd, closing newfd first if
+ * it is open. Both file descriptors share the file position. The file or
+ * stream is closed once all its file descriptors are closed.
+ *
+ * Returns newfd on success, or -1 if an error occurred.
+ */
+int dup2(int fd, int newfd);
+
+/* A buffer for readv() and writev(). */
+struct iovec {
+    void *iov_base;	/* the start of the buffer */
+    int iov_len;	/* the size of the buffer in bytes */
+};
+
+/**
+ * Attempt to read into the iovcnt buffers described by iov, filling each in
+ * turn, with a single system call. At most 16 buffers may be given.
+ *
+ * Behaves as if read() were called for each buffer in order, stopping after
+ * the first buffer that is not filled completely. Returns the total number of
+ * bytes read, or -1 if an error occurred before any bytes were read. This can
+ * happen if fileDescriptor or iovcnt is invalid, if a buffer length is
+ * negative, or for any reason read() would fail.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Attempt to write the contents of the iovcnt buffers described by iov, in
+ * order, with a single system call. At most 16 buffers may be given.
+ *
+ * Behaves as if write() were called for each buffer in order, stopping after
+ * the first buffer that is not written completely. Returns the total number
+ * of bytes written, or -1 if an error occurred before any bytes were written.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* ASYNCHRONOUS I/O SYSCALLS: io_setup, io_enter
+ *
+ * A process can have many reads and writes in flight at once through a pair
+ * of rings in its own memory. It fills in submission entries and advances
+ * sq_tail, then calls io_enter() to hand them to the kernel. The kernel
+ * advances sq_head as it takes entries, and posts a completion entry for
+ * each operation, advancing cq_tail. The process reads completions from
+ * cq_head and advances cq_head past them.
+ *
+ * The heads and tails count entries and are never wrapped; entry i of a ring
+ * is sqes[i % entries] or cqes[i % entries].
+ */
+
+#define IO_OP_READ	0
+#define IO_OP_WRITE	1
+
+/* A submission entry: read() or write() count bytes between fd and buf. */
+struct io_sqe {
+    int opcode;		/* IO_OP_READ or IO_OP_WRITE */
+    int fd;		/* the file descriptor */
+    void *buf;		/* the buffer */
+    int count;		/* the size of the buffer in bytes */
+    int user_data;	/* copied to the completion entry */
+};
+
+/* A completion entry. */
+struct io_cqe {
+    int user_data;	/* user_data of the submission */
+    int result;		/* what read() or write() would have returned */
+};
+
+struct io_ring {
+    int sq_head;		/* advanced by the kernel */
+    int sq_tail;		/* advanced by the process */
+    int cq_head;		/* advanced by the process */
+    int cq_tail;		/* advanced by the kernel */
+    struct io_sqe *sqes;	/* the submission entries */
+    struct io_cqe *cqes;	/* the completion entries */
+};
+
+/**
+ * Register ring for asynchronous I/O. ring->sqes and ring->cqes must each
+ * point to an array of entries elements, and entries may be at most 64. The
+ * kernel sets the heads and tails of both rings to 0. A process may register
+ * only one ring, which a forked child does not inherit.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int io_setup(struct io_ring *ring, int entries);
+
+/**
+ * Submit up to toSubmit of the queued submission entries, then wait until at
+ * least minComplete completion entries are waiting between cq_head and
+ * cq_tail, or until no operation is left in flight. Operations on the same
+ * file are carried out in the order they were submitted; operations on
+ * different files may be carried out at once. Fewer entries are submitted if
+ * the completion ring could not hold the result of every operation in
+ * flight.
+ *
+ * An entry with a bad file descriptor, opcode or count completes with a
+ * result of -1. As with read() and write(), a buffer outside the process's
+ * memory terminates the process. An operation on a file descriptor that is
+ * closed before it completes may fail. A process does not exit until its
+ * operations in flight have completed.
+ *
+ * Returns the number of entries submitted, or -1 if no ring is registered.
+ */
+int io_enter(int toSubmit, int minComplete);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
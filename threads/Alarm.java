@@ -2,15 +2,21 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeMap;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * If <tt>Alarm.tickless</tt> is set, the timer is put in one-shot mode and is
+ * only programmed when something needs it: the earliest wake-up time of a
+ * sleeping thread, or the end of the current time slice when other threads are
+ * waiting to run. When only one thread is runnable, or the system is idle with
+ * no sleepers, the timer does not interrupt at all.
  */
 public class Alarm {
 	
-	private TreeMap<Long, KThread> waitingThreads;
+	/** Sleeping threads, keyed by wake-up time */
+	private TimingWheel waitingThreads;
 	
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -20,7 +26,10 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		waitingThreads = new TreeMap<Long, KThread>();
+		waitingThreads = new TimingWheel(Machine.timer().getTime());
+		tickless = Config.getBoolean("Alarm.tickless", false);
+		if (tickless)
+			Machine.timer().setOneShot();
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -30,23 +39,28 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks), or at the programmed
+	 * time in tickless mode. Causes the current thread to yield, forcing a
+	 * context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
 		// Readying threads is an atomic operation
 		boolean intStatus = Machine.interrupt().disable();
 
+		// Let the scheduler charge the current thread for its time slice
+		ThreadedKernel.scheduler.timerInterrupt();
+
 		// Ready all threads whose wait time has expired
-		long curTime = Machine.timer().getTime();
-		while (!waitingThreads.isEmpty() && waitingThreads.firstKey() <= curTime)
-			waitingThreads.pollFirstEntry().getValue().ready();
+		waitingThreads.advance(Machine.timer().getTime());
+
+		// The time slice that just ended is over; the next thread gets a new one
+		quantumEnd = -1;
+		programTimer();
 		
 		Machine.interrupt().restore(intStatus);
 
 		// Preempt current thread as normal
-		KThread.yield();
+		KThread.preempt();
 	}
 
 	/**
@@ -67,13 +81,155 @@ public class Alarm {
 		boolean intStatus = Machine.interrupt().disable();
 
 		// Place current thread on a wait queue and put it to sleep
-		waitingThreads.put(Machine.timer().getTime() + x, KThread.currentThread());
+		schedule(new Sleeper(KThread.currentThread()), x);
 		KThread.sleep();
 		
 		Machine.interrupt().restore(intStatus);
 	}
 	
 
+	/**
+	 * Arrange for the specified entry to expire during the first timer
+	 * interrupt at least <i>x</i> ticks from now. Must be called with
+	 * interrupts disabled.
+	 * 
+	 * @param entry
+	 *            an entry that is not already scheduled.
+	 * @param x
+	 *            the minimum number of clock ticks to wait.
+	 */
+	void schedule(TimingWheel.Entry entry, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		waitingThreads.add(entry, Machine.timer().getTime() + x);
+		programTimer();
+	}
+
+	/**
+	 * Cancel an entry scheduled with <tt>schedule()</tt>, if it has not
+	 * expired yet. Must be called with interrupts disabled.
+	 * 
+	 * @param entry
+	 *            the entry to cancel.
+	 * @return <tt>true</tt> if the entry was cancelled before it expired.
+	 */
+	boolean cancel(TimingWheel.Entry entry) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!waitingThreads.remove(entry))
+			return false;
+
+		programTimer();
+		return true;
+	}
+
+	/**
+	 * Called by <tt>KThread.ready()</tt> when a thread becomes ready. In
+	 * tickless mode, this starts a time slice for the current thread if one is
+	 * not already running, so that the new thread is not starved.
+	 */
+	void threadReady() {
+		if (tickless && quantumEnd < 0)
+			programTimer();
+	}
+
+	/**
+	 * Called by <tt>KThread.runNextThread()</tt> when a different thread is
+	 * about to run. In tickless mode, the new thread gets a full time slice
+	 * rather than what is left of the previous thread's.
+	 */
+	void threadDispatched() {
+		if (tickless) {
+			quantumEnd = -1;
+			programTimer();
+		}
+	}
+
+	/**
+	 * In tickless mode, program the timer for the earlier of the next wake-up
+	 * time and the end of the current time slice. A time slice is only started
+	 * when there are other threads waiting to run. Must be called with
+	 * interrupts disabled.
+	 */
+	private void programTimer() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!tickless)
+			return;
+
+		long next = waitingThreads.nextExpiry();
+
+		if (KThread.hasReadyThreads()) {
+			if (quantumEnd < 0)
+				quantumEnd = Machine.timer().getTime() + Stats.TimerTicks;
+			if (next < 0 || quantumEnd < next)
+				next = quantumEnd;
+		} else {
+			quantumEnd = -1;
+		}
+
+		Machine.timer().setNextInterrupt(next);
+	}
+
+	/**
+	 * A thread sleeping in <tt>waitUntil()</tt>, readied when its time comes.
+	 */
+	private static class Sleeper extends TimingWheel.Entry {
+		Sleeper(KThread thread) {
+			this.thread = thread;
+		}
+
+		void expire() {
+			thread.ready();
+		}
+
+		private KThread thread;
+	}
+
+	/**
+	 * The timeout of a bounded wait on a synchronization primitive. When it
+	 * expires, <tt>cancelWait()</tt> takes the waiting thread off whatever it
+	 * is waiting on. If the thread was still waiting, it is readied and the
+	 * wait is marked as timed out; otherwise it was woken in the meantime and
+	 * the timeout has no effect.
+	 */
+	static abstract class Timeout extends TimingWheel.Entry {
+		Timeout(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Stop the thread from waiting. Called with interrupts disabled.
+		 * 
+		 * @return <tt>true</tt> if the thread was still waiting.
+		 */
+		abstract boolean cancelWait();
+
+		void expire() {
+			if (cancelWait()) {
+				timedOut = true;
+				thread.ready();
+			}
+		}
+
+		/**
+		 * Tests whether the wait ended because this timeout expired.
+		 * 
+		 * @return <tt>true</tt> if the thread was readied by this timeout.
+		 */
+		boolean timedOut() {
+			return timedOut;
+		}
+
+		private KThread thread;
+		private boolean timedOut = false;
+	}
+
+	/** <tt>true</tt> if the timer is only programmed on demand. */
+	private boolean tickless;
+	/** The end of the current time slice in tickless mode, or -1 if none. */
+	private long quantumEnd = -1;
+
 	private static final char dbgAlarm = 'a'; 	// Flag to enable Alarm debug output
 	/**
 	 * Run sanity check on Alarm.waitUntil
@@ -104,6 +260,48 @@ public class Alarm {
 		threadA.join(); threadB.join(); threadC.join();
 		
 		Lib.debug(dbgAlarm, (TestSeqThread.wakeSequence.equals("ABC") ? "[PASS]" : "[FAIL") + ": Threads woke up in order (" + TestSeqThread.wakeSequence + ")");
+		
+		// Test that threads sleeping until the same tick all wake up
+		final long deadline = Machine.timer().getTime() + 5000;
+		final int[] woken = new int[1];
+		KThread[] sameTick = new KThread[5];
+		for (int i = 0; i < sameTick.length; i++) {
+			sameTick[i] = new KThread(new Runnable() {
+				public void run() {
+					ThreadedKernel.alarm.waitUntil(deadline - Machine.timer().getTime());
+					woken[0]++;
+				}
+			});
+			sameTick[i].fork();
+		}
+		for (int i = 0; i < sameTick.length; i++)
+			sameTick[i].join();
+		
+		Lib.debug(dbgAlarm, ((woken[0] == sameTick.length) ? "[PASS]" : "[FAIL]") + ": All threads sleeping until the same tick woke up (" + woken[0] + ")");
+		
+		// Test that many sleepers spread over several wheel levels wake in order, on time
+		final long start = Machine.timer().getTime();
+		final long[] lastWake = new long[] { start };
+		final boolean[] ok = new boolean[] { true };
+		KThread[] spread = new KThread[64];
+		for (int i = 0; i < spread.length; i++) {
+			final long ticks = (i * 7919L) % 20000;
+			spread[i] = new KThread(new Runnable() {
+				public void run() {
+					long due = Machine.timer().getTime() + ticks;
+					ThreadedKernel.alarm.waitUntil(ticks);
+					long now = Machine.timer().getTime();
+					if (now < due || now < lastWake[0])
+						ok[0] = false;
+					lastWake[0] = now;
+				}
+			});
+			spread[i].fork();
+		}
+		for (int i = 0; i < spread.length; i++)
+			spread[i].join();
+		
+		Lib.debug(dbgAlarm, (ok[0] ? "[PASS]" : "[FAIL]") + ": " + spread.length + " sleepers woke in order, on time");
 	}
 	
 	/**
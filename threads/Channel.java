@@ -0,0 +1,358 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A bounded first-in first-out channel between threads. Unlike a
+ * <tt>Communicator</tt>, which hands over one word per rendezvous, a channel
+ * buffers up to <i>capacity</i> items, so senders only wait when it is full
+ * and receivers only wait when it is empty. <tt>sendAll()</tt> and
+ * <tt>drainTo()</tt> move many items for one acquisition of the channel's
+ * lock and one wakeup.
+ *
+ * <p>
+ * <tt>select()</tt> waits until any of several channels has an item.
+ */
+public class Channel<T> {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity
+	 *            the maximum number of items buffered. Must be positive.
+	 */
+	public Channel(int capacity) {
+		this(capacity, "Channel");
+	}
+
+	/**
+	 * Allocate a new named channel. The name identifies the channel's lock in
+	 * scheduler statistics.
+	 *
+	 * @param capacity
+	 *            the maximum number of items buffered. Must be positive.
+	 * @param name
+	 *            the name of this channel.
+	 */
+	public Channel(int capacity, String name) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new Object[capacity];
+		lock = new Lock(name);
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Add an item to the end of this channel, waiting while it is full.
+	 *
+	 * @param item
+	 *            the item to send. Must not be <tt>null</tt>.
+	 */
+	public void send(T item) {
+		Lib.assertTrue(item != null);
+
+		lock.acquire();
+		while (count == buffer.length)
+			notFull.sleep();
+
+		put(item);
+		notEmpty.wake();
+		signalSelectors();
+		lock.release();
+	}
+
+	/**
+	 * Add an item to the end of this channel if there is room.
+	 *
+	 * @param item
+	 *            the item to send. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the item was added, or <tt>false</tt> if the
+	 *         channel was full.
+	 */
+	public boolean trySend(T item) {
+		Lib.assertTrue(item != null);
+
+		lock.acquire();
+		boolean sent = count < buffer.length;
+		if (sent) {
+			put(item);
+			notEmpty.wake();
+			signalSelectors();
+		}
+		lock.release();
+
+		return sent;
+	}
+
+	/**
+	 * Add every item of a collection to the end of this channel, in iteration
+	 * order. Items are added as fast as room allows, waiting whenever the
+	 * channel is full, so other senders' items are never interleaved within a
+	 * batch that fits.
+	 *
+	 * @param items
+	 *            the items to send. None may be <tt>null</tt>.
+	 */
+	public void sendAll(Collection<? extends T> items) {
+		lock.acquire();
+
+		for (T item : items) {
+			Lib.assertTrue(item != null);
+
+			if (count == buffer.length) {
+				notEmpty.wakeAll();
+				while (count == buffer.length)
+					notFull.sleep();
+			}
+
+			put(item);
+		}
+
+		if (!items.isEmpty()) {
+			notEmpty.wakeAll();
+			signalSelectors();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Remove the item at the front of this channel, waiting while it is
+	 * empty.
+	 *
+	 * @return the item removed.
+	 */
+	public T receive() {
+		lock.acquire();
+		while (count == 0)
+			notEmpty.sleep();
+
+		T item = take();
+		notFull.wake();
+		lock.release();
+
+		return item;
+	}
+
+	/**
+	 * Remove the item at the front of this channel if there is one.
+	 *
+	 * @return the item removed, or <tt>null</tt> if the channel was empty.
+	 */
+	public T tryReceive() {
+		lock.acquire();
+		T item = null;
+		if (count > 0) {
+			item = take();
+			notFull.wake();
+		}
+		lock.release();
+
+		return item;
+	}
+
+	/**
+	 * Wait until this channel is not empty, then move up to <i>max</i> items
+	 * from its front to the end of a collection.
+	 *
+	 * @param items
+	 *            the collection to add the items to.
+	 * @param max
+	 *            the maximum number of items to move. Must be positive.
+	 * @return the number of items moved, at least one.
+	 */
+	public int drainTo(Collection<? super T> items, int max) {
+		Lib.assertTrue(max > 0);
+
+		lock.acquire();
+		while (count == 0)
+			notEmpty.sleep();
+
+		int n = Math.min(count, max);
+		for (int i = 0; i < n; i++)
+			items.add(take());
+
+		if (n == 1)
+			notFull.wake();
+		else
+			notFull.wakeAll();
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Wait until this channel is not empty, then move every item in it to the
+	 * end of a collection.
+	 *
+	 * @param items
+	 *            the collection to add the items to.
+	 * @return the number of items moved, at least one.
+	 */
+	public int drainTo(Collection<? super T> items) {
+		return drainTo(items, buffer.length);
+	}
+
+	/**
+	 * Return the number of items buffered in this channel. The answer may be
+	 * out of date as soon as it is returned.
+	 *
+	 * @return the number of items buffered.
+	 */
+	public int size() {
+		lock.acquire();
+		int n = count;
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Wait until at least one of the specified channels is not empty.
+	 * Another receiver may empty the channel before the caller gets to it, so
+	 * callers should receive with <tt>tryReceive()</tt> and select again if it
+	 * returns <tt>null</tt>.
+	 *
+	 * @param channels
+	 *            the channels to wait on.
+	 * @return the index in <i>channels</i> of a channel that was not empty.
+	 */
+	public static int select(Channel<?>... channels) {
+		Lib.assertTrue(channels.length > 0);
+
+		Semaphore ready = new Semaphore(0, "Channel.select");
+
+		while (true) {
+			// Register first, so a send after a channel is checked still wakes us
+			for (int i = 0; i < channels.length; i++) {
+				Channel<?> channel = channels[i];
+
+				channel.lock.acquire();
+				if (channel.count > 0) {
+					channel.lock.release();
+					for (int j = 0; j < i; j++)
+						channels[j].unregister(ready);
+					return i;
+				}
+				channel.selectors.add(ready);
+				channel.lock.release();
+			}
+
+			ready.P();
+
+			for (Channel<?> channel : channels)
+				channel.unregister(ready);
+		}
+	}
+
+	private void put(T item) {
+		buffer[(head + count) % buffer.length] = item;
+		count++;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T take() {
+		T item = (T) buffer[head];
+		buffer[head] = null;
+		head = (head + 1) % buffer.length;
+		count--;
+
+		return item;
+	}
+
+	/**
+	 * Wake every thread waiting in <tt>select()</tt> on this channel. Called
+	 * with the lock held, after adding items.
+	 */
+	private void signalSelectors() {
+		while (!selectors.isEmpty())
+			selectors.removeFirst().V();
+	}
+
+	private void unregister(Semaphore selector) {
+		lock.acquire();
+		selectors.remove(selector);
+		lock.release();
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		// Items arrive in order, and senders wait only when the channel is full
+		final Channel<Integer> channel = new Channel<Integer>(4);
+		final int[] sent = new int[1];
+		KThread sender = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 10; i++) {
+					channel.send(i);
+					sent[0]++;
+				}
+			}
+		}).setName("channel sender");
+		sender.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		int bufferedBeforeReceive = sent[0];
+
+		boolean ordered = true;
+		for (int i = 0; i < 10; i++)
+			ordered &= channel.receive() == i;
+		sender.join();
+		System.out.println((ordered && bufferedBeforeReceive == 4 ? "[PASS]"
+				: "[FAIL]")
+				+ ": Channel buffered " + bufferedBeforeReceive
+				+ " items and delivered them in order");
+
+		// A batch larger than the capacity gets through whole and in order
+		final ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int i = 0; i < 9; i++)
+			batch.add(i);
+		sender = new KThread(new Runnable() {
+			public void run() {
+				channel.sendAll(batch);
+			}
+		}).setName("channel batch sender");
+		sender.fork();
+
+		ArrayList<Integer> drained = new ArrayList<Integer>();
+		int drains = 0;
+		while (drained.size() < batch.size()) {
+			channel.drainTo(drained, 3);
+			drains++;
+		}
+		sender.join();
+		System.out.println((drained.equals(batch) && drains <= 9 ? "[PASS]"
+				: "[FAIL]")
+				+ ": Channel.sendAll()/drainTo() moved " + drained.size()
+				+ " items in " + drains + " drains");
+
+		// select() waits for whichever channel gets an item
+		final Channel<String> quiet = new Channel<String>(1);
+		final Channel<String> busy = new Channel<String>(1);
+		new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(500);
+				busy.send("hello");
+			}
+		}).setName("channel select sender").fork();
+		int which = select(quiet, busy);
+		String item = busy.tryReceive();
+		System.out.println((which == 1 && "hello".equals(item)
+				&& quiet.tryReceive() == null ? "[PASS]" : "[FAIL]")
+				+ ": Channel.select() returned the channel with an item");
+	}
+
+	private Object[] buffer;
+	/** Index of the item at the front of the channel. */
+	private int head = 0;
+	/** Number of items buffered. */
+	private int count = 0;
+
+	private Lock lock;
+	private Condition2 notEmpty, notFull;
+	/** Semaphores of the threads waiting in <tt>select()</tt>. */
+	private LinkedList<Semaphore> selectors = new LinkedList<Semaphore>();
+}
@@ -60,7 +60,22 @@ public class Condition {
 	 *            <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition(Lock conditionLock) {
+		this(conditionLock, conditionLock.name);
+	}
+
+	/**
+	 * Allocate a new named condition variable. The name identifies the
+	 * condition variable in scheduler statistics and contention profiles.
+	 * 
+	 * @param conditionLock
+	 *            the lock associated with this condition variable.
+	 * @param name
+	 *            the name of this condition variable.
+	 */
+	public Condition(Lock conditionLock, String name) {
 		this.conditionLock = conditionLock;
+		this.name = name;
+		profile = LockProfiler.forName("Condition", name);
 
 		waitQueue = new LinkedList<Semaphore>();
 	}
@@ -80,12 +95,53 @@ public class Condition {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
+		Semaphore waiter = new Semaphore(0, name, false);
 		waitQueue.add(waiter);
+		long start = Machine.timer().getTime();
 
 		conditionLock.release();
 		waiter.P();
-		conditionLock.acquire();
+
+		// wake() normally hands the lock to us directly
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+
+		if (profile != null)
+			profile.slept(KThread.currentThread(), Machine.timer().getTime()
+					- start);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting after <i>timeout</i> ticks.
+	 * The lock is reacquired before returning either way.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+	 *         <tt>wakeAll()</tt>, or <tt>false</tt> if the wait timed out.
+	 */
+	public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		Semaphore waiter = new Semaphore(0, name, false);
+		waitQueue.add(waiter);
+		long start = Machine.timer().getTime();
+
+		conditionLock.release();
+		boolean woken = waiter.tryP(timeout);
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+
+		if (profile != null)
+			profile.slept(KThread.currentThread(), Machine.timer().getTime()
+					- start);
+
+		// A waker may have taken our semaphore after the timeout but before we
+		// got the lock back; that wake-up was meant for us.
+		if (!woken && !waitQueue.remove(waiter))
+			woken = true;
+
+		return woken;
 	}
 
 	/**
@@ -96,12 +152,37 @@ public class Condition {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		if (!waitQueue.isEmpty())
-			waitQueue.removeFirst().V();
+			waitQueue.removeFirst().handOff(conditionLock);
+	}
+
+	/**
+	 * Wake up at most <i>n</i> threads sleeping on this condition variable.
+	 * The current thread must hold the associated lock.
+	 * 
+	 * @param n
+	 *            the maximum number of threads to wake.
+	 * @return the number of threads woken.
+	 */
+	public int wake(int n) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		int woken = 0;
+		while (woken < n && !waitQueue.isEmpty()) {
+			wake();
+			woken++;
+		}
+
+		return woken;
 	}
 
 	/**
 	 * Wake up all threads sleeping on this condition variable. The current
 	 * thread must hold the associated lock.
+	 * 
+	 * <p>
+	 * Woken threads are moved straight onto the associated lock's wait queue,
+	 * so they run one at a time as the lock is released rather than all
+	 * waking up only to block on the lock again.
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
@@ -111,5 +192,9 @@ public class Condition {
 	}
 
 	private Lock conditionLock;
+	private String name;
 	private LinkedList<Semaphore> waitQueue;
+
+	/** Contention profile, if profiling is enabled. */
+	private LockProfiler profile;
 }
@@ -23,7 +23,21 @@ public class Condition2 {
 	 *            <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition2(Lock conditionLock) {
+		this(conditionLock, conditionLock.name);
+	}
+
+	/**
+	 * Allocate a new named condition variable. The name identifies the
+	 * condition variable in contention profiles.
+	 * 
+	 * @param conditionLock
+	 *            the lock associated with this condition variable.
+	 * @param name
+	 *            the name of this condition variable.
+	 */
+	public Condition2(Lock conditionLock, String name) {
 		this.conditionLock = conditionLock;
+		profile = LockProfiler.forName("Condition", name);
 	}
 
 	/**
@@ -38,6 +52,8 @@ public class Condition2 {
 		// disable machine interrupts to ensure atomic operations
 		boolean status = Machine.interrupt().disable();
 
+		long start = Machine.timer().getTime();
+
 		// release the lock
 		conditionLock.release();
 
@@ -47,16 +63,65 @@ public class Condition2 {
 		/*
 		 * Sleep the current thread
 		 * 
-		 * If the thread is woken up prematurely, it will sleep on the lock
+		 * wake() moves us onto the lock's wait queue, so we normally wake up
+		 * already holding the lock
 		 */
 		KThread.sleep();
 
-		conditionLock.acquire();
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+
+		if (profile != null)
+			profile.slept(KThread.currentThread(), Machine.timer().getTime()
+					- start);
 
 		// restore machine state
 		Machine.interrupt().restore(status);
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting after <i>timeout</i> ticks.
+	 * The lock is reacquired before returning either way.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+	 *         <tt>wakeAll()</tt>, or <tt>false</tt> if the wait timed out.
+	 */
+	public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean status = Machine.interrupt().disable();
+		long start = Machine.timer().getTime();
+
+		conditionLock.release();
+
+		final KThread thread = KThread.currentThread();
+		waitQueue.add(thread);
+
+		Alarm.Timeout timeoutEntry = new Alarm.Timeout(thread) {
+			boolean cancelWait() {
+				return waitQueue.remove(thread);
+			}
+		};
+		ThreadedKernel.alarm.schedule(timeoutEntry, timeout);
+		KThread.sleep();
+
+		// Woken early: drop the pending timeout so it does not fire later
+		ThreadedKernel.alarm.cancel(timeoutEntry);
+
+		// Only a thread that timed out has to wait for the lock itself
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+
+		if (profile != null)
+			profile.slept(thread, Machine.timer().getTime() - start);
+
+		Machine.interrupt().restore(status);
+
+		return !timeoutEntry.timedOut();
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -67,25 +132,50 @@ public class Condition2 {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (!waitQueue.isEmpty())
-			waitQueue.pop().ready();
+			conditionLock.requeue(waitQueue.pop());
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Wake up at most <i>n</i> threads sleeping on this condition variable.
+	 * The current thread must hold the associated lock.
+	 * 
+	 * @param n
+	 *            the maximum number of threads to wake.
+	 * @return the number of threads woken.
+	 */
+	public int wake(int n) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int woken = 0;
+		while (woken < n && !waitQueue.isEmpty()) {
+			conditionLock.requeue(waitQueue.pop());
+			woken++;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return woken;
+	}
+
 	/**
 	 * Wake up all threads sleeping on this condition variable. The current
 	 * thread must hold the associated lock.
+	 * 
+	 * <p>
+	 * Rather than being readied, woken threads are moved straight onto the
+	 * associated lock's wait queue (wait morphing), so each runs only once the
+	 * lock is free instead of waking up just to block on it again.
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
 		boolean intStatus = Machine.interrupt().disable();
 		
-		for (KThread waitingThead : waitQueue) {
-			waitingThead.ready();
-		}
-		
-		waitQueue.clear();
+		while (!waitQueue.isEmpty())
+			conditionLock.requeue(waitQueue.pop());
 		
 		Machine.interrupt().restore(intStatus);
 	}
@@ -194,8 +284,57 @@ public class Condition2 {
 		thread.fork();
 		thread.join();
 		
+		// Woken threads are handed the lock one at a time, so let them all run
+		ThreadedKernel.alarm.waitUntil(100);
+		
 		// Notice: this should wake up the thread that's still hanging around from the last test, in addition to the new ones.
 		System.out.println((WakeCounter.wakeups == 3 ? "[PASS]" : "[FAIL]") + ": All sleeping threads woken by Condition2.wakeAll(). (" + WakeCounter.wakeups + ")");
+		
+		// Verify that sleepFor() times out, and holds the lock afterwards
+		final Condition2 timed = new Condition2(lock);
+		lock.acquire();
+		long start = Machine.timer().getTime();
+		boolean woken = timed.sleepFor(1000);
+		long waited = Machine.timer().getTime() - start;
+		System.out.println((!woken && waited >= 1000 && lock.isHeldByCurrentThread() ? "[PASS]" : "[FAIL]") + ": Condition2.sleepFor() timed out after " + waited + " ticks.");
+		lock.release();
+		
+		// Verify that sleepFor() returns early when woken
+		thread = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				timed.wake();
+				lock.release();
+			}
+		});
+		lock.acquire();
+		thread.fork();
+		start = Machine.timer().getTime();
+		woken = timed.sleepFor(100000);
+		waited = Machine.timer().getTime() - start;
+		lock.release();
+		thread.join();
+		System.out.println((woken && waited < 100000 ? "[PASS]" : "[FAIL]") + ": Condition2.sleepFor() woken before its timeout.");
+		
+		// Verify that wake(n) wakes at most n threads and reports how many
+		WakeCounter.wakeups = 0;
+		WakeCounter.lock = new Lock();
+		WakeCounter.cond = new Condition2(WakeCounter.lock);
+		for (int i = 0; i < 3; i++)
+			new KThread(new WakeCounter()).fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		
+		WakeCounter.lock.acquire();
+		int first = WakeCounter.cond.wake(2);
+		WakeCounter.lock.release();
+		ThreadedKernel.alarm.waitUntil(100);
+		int afterFirst = WakeCounter.wakeups;
+		
+		WakeCounter.lock.acquire();
+		int second = WakeCounter.cond.wake(5);
+		WakeCounter.lock.release();
+		ThreadedKernel.alarm.waitUntil(100);
+		System.out.println((first == 2 && afterFirst == 2 && second == 1 && WakeCounter.wakeups == 3 ? "[PASS]" : "[FAIL]") + ": Condition2.wake(n) woke " + first + " then " + second + " threads.");
 	}
 	
 	/**
@@ -217,5 +356,8 @@ public class Condition2 {
 
 	private Lock conditionLock;
 
+	/** Contention profile, if profiling is enabled. */
+	private LockProfiler profile;
+
 	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
 }
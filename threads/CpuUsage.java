@@ -0,0 +1,273 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The CPU time charged to a thread, or to a group of threads such as a user
+ * process: user and kernel ticks while running, ticks spent blocked and ticks
+ * spent ready but waiting for the CPU, and how many times it gave up the CPU
+ * voluntarily or was preempted.
+ *
+ * <p>
+ * Accounting is off unless <tt>CpuUsage.enabled</tt> is set. The running
+ * thread is charged at each context switch, so the ticks of an interrupt
+ * handler go to whichever thread it interrupted. If
+ * <tt>CpuUsage.topInterval</tt> is set, the busiest accounts are printed every
+ * that many ticks; a summary is always printed when the kernel terminates.
+ */
+public class CpuUsage {
+	/**
+	 * Allocate a new account.
+	 *
+	 * @param owner
+	 *            the thread, or the name of the group, the account is for.
+	 */
+	private CpuUsage(Object owner) {
+		this.owner = owner;
+		all.add(this);
+	}
+
+	/**
+	 * Return a new account for a group of threads, such as the threads of a
+	 * user process. Threads are charged to it as well as to their own accounts
+	 * once they are added with <tt>KThread.setCpuAccount()</tt>.
+	 *
+	 * @param name
+	 *            the name of the account.
+	 * @return the new account, or <tt>null</tt> if accounting is not enabled.
+	 */
+	public static CpuUsage newAccount(String name) {
+		return enabled ? new CpuUsage(name) : null;
+	}
+
+	/**
+	 * Return a new account for a thread, or <tt>null</tt> if accounting is not
+	 * enabled.
+	 */
+	static CpuUsage forThread(KThread thread) {
+		if (!enabled)
+			return null;
+
+		CpuUsage usage = new CpuUsage(thread);
+		usage.since = Machine.timer().getTime();
+		return usage;
+	}
+
+	/** @return the user ticks charged to this account. */
+	public long getUserTicks() {
+		return userTicks;
+	}
+
+	/** @return the kernel ticks charged to this account. */
+	public long getKernelTicks() {
+		return kernelTicks;
+	}
+
+	/** @return the ticks this account's threads spent blocked. */
+	public long getBlockedTicks() {
+		return blockedTicks;
+	}
+
+	/** @return the ticks this account's threads spent waiting to run. */
+	public long getReadyTicks() {
+		return readyTicks;
+	}
+
+	/** @return the number of times a thread gave up the CPU itself. */
+	public int getVoluntarySwitches() {
+		return voluntary;
+	}
+
+	/** @return the number of times a thread was preempted. */
+	public int getPreemptions() {
+		return preempted;
+	}
+
+	/**
+	 * Called when a thread becomes ready, with interrupts disabled.
+	 *
+	 * @param thread
+	 *            the thread, which is not the current thread.
+	 * @param blocked
+	 *            <tt>true</tt> if the thread was blocked rather than new.
+	 */
+	static void readied(KThread thread, boolean blocked) {
+		long now = Machine.timer().getTime();
+
+		if (blocked)
+			thread.cpuUsage.charge(thread.cpuAccount, 0, 0, now
+					- thread.cpuUsage.since, 0);
+		thread.cpuUsage.since = now;
+	}
+
+	/**
+	 * Called just before the CPU is switched from one thread to another, with
+	 * interrupts disabled. Charges the outgoing thread for the time since the
+	 * last switch and the incoming thread for the time it waited.
+	 *
+	 * @param from
+	 *            the current thread, already ready, blocked or finished.
+	 * @param to
+	 *            the thread about to run. May be the current thread.
+	 * @param preemption
+	 *            <tt>true</tt> if the current thread is being preempted.
+	 * @param waited
+	 *            <tt>true</tt> if the incoming thread was on the ready queue,
+	 *            rather than being the idle thread.
+	 */
+	static void switching(KThread from, KThread to, boolean preemption,
+			boolean waited) {
+		long now = Machine.timer().getTime();
+
+		chargeRunning(from);
+		from.cpuUsage.since = now;
+
+		if (from == to)
+			return;
+
+		if (preemption)
+			from.cpuUsage.preempted++;
+		else
+			from.cpuUsage.voluntary++;
+		if (from.cpuAccount != null) {
+			if (preemption)
+				from.cpuAccount.preempted++;
+			else
+				from.cpuAccount.voluntary++;
+		}
+
+		if (waited)
+			to.cpuUsage.charge(to.cpuAccount, 0, 0, 0, now - to.cpuUsage.since);
+	}
+
+	/**
+	 * Charge the running thread for the user and kernel ticks since the last
+	 * switch.
+	 */
+	private static void chargeRunning(KThread thread) {
+		long user = Machine.timer().getUserTime();
+		long kernel = Machine.timer().getKernelTime();
+
+		thread.cpuUsage.charge(thread.cpuAccount, user - lastUserTicks, kernel
+				- lastKernelTicks, 0, 0);
+		lastUserTicks = user;
+		lastKernelTicks = kernel;
+	}
+
+	private void charge(CpuUsage account, long user, long kernel,
+			long blocked, long ready) {
+		userTicks += user;
+		kernelTicks += kernel;
+		blockedTicks += blocked;
+		readyTicks += ready;
+
+		if (account != null)
+			account.charge(null, user, kernel, blocked, ready);
+	}
+
+	/**
+	 * Print the accounts with the most CPU time, busiest first, after charging
+	 * the current thread for its time so far. Prints nothing if accounting is
+	 * not enabled.
+	 *
+	 * @param n
+	 *            the maximum number of accounts to print.
+	 */
+	public static void printTop(int n) {
+		if (!enabled)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		chargeRunning(KThread.currentThread());
+
+		ArrayList<CpuUsage> sorted = new ArrayList<CpuUsage>(all);
+		Collections.sort(sorted, new Comparator<CpuUsage>() {
+			public int compare(CpuUsage a, CpuUsage b) {
+				long aTicks = a.userTicks + a.kernelTicks;
+				long bTicks = b.userTicks + b.kernelTicks;
+				if (aTicks != bTicks)
+					return aTicks > bTicks ? -1 : 1;
+				return a.toString().compareTo(b.toString());
+			}
+		});
+
+		long total = Machine.timer().getTime();
+		System.out.println("CPU usage at tick " + total + ":");
+		System.out.println("     user   kernel  %cpu  blocked    ready   vol  pre  name");
+		for (int i = 0; i < n && i < sorted.size(); i++) {
+			CpuUsage usage = sorted.get(i);
+			if (usage.userTicks + usage.kernelTicks == 0)
+				break;
+			System.out.println(pad(usage.userTicks, 9)
+					+ pad(usage.kernelTicks, 9)
+					+ pad(100 * (usage.userTicks + usage.kernelTicks)
+							/ Math.max(total, 1), 6)
+					+ pad(usage.blockedTicks, 9) + pad(usage.readyTicks, 9)
+					+ pad(usage.voluntary, 6) + pad(usage.preempted, 5) + "  "
+					+ usage);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Start a kernel thread that prints the busiest accounts every
+	 * <tt>CpuUsage.topInterval</tt> ticks, if that is set.
+	 */
+	static void startTop() {
+		final int interval = Config.getInteger("CpuUsage.topInterval", 0);
+		if (!enabled || interval <= 0)
+			return;
+
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(interval);
+					printTop(topCount);
+				}
+			}
+		}).setName("top").fork();
+	}
+
+	/**
+	 * Print the termination summary, if accounting is enabled.
+	 */
+	static void printAll() {
+		printTop(all.size());
+	}
+
+	private static String pad(long value, int width) {
+		String s = Long.toString(value);
+		while (s.length() < width)
+			s = " " + s;
+		return s;
+	}
+
+	public String toString() {
+		return owner.toString();
+	}
+
+	/** The thread, or the name of the group, this account is for. */
+	private Object owner;
+
+	private long userTicks = 0, kernelTicks = 0;
+	private long blockedTicks = 0, readyTicks = 0;
+	private int voluntary = 0, preempted = 0;
+	/**
+	 * For a thread's own account, the time it last became blocked, ready or
+	 * running.
+	 */
+	private long since;
+
+	private static long lastUserTicks = 0, lastKernelTicks = 0;
+
+	private static final int topCount = 10;
+
+	private static boolean enabled = Config.getBoolean("CpuUsage.enabled", false);
+	private static ArrayList<CpuUsage> all = new ArrayList<CpuUsage>();
+}
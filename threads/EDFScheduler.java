@@ -0,0 +1,519 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * An earliest-deadline-first scheduler with a best-effort fallback class.
+ *
+ * <p>
+ * A thread that has been given a reservation with
+ * <tt>setReservation()</tt> is a real-time thread: it is entitled to
+ * <i>budget</i> ticks of processor time in every <i>period</i> ticks, and its
+ * deadline is the end of its current period. Real-time threads are always
+ * dequeued ahead of best-effort threads, in order of their deadlines. Every
+ * other thread is best-effort and is served first-come first-serve, as by a
+ * round-robin scheduler.
+ *
+ * <p>
+ * Reservations are subject to admission control: a reservation is refused if
+ * it would raise the total utilization (the sum of <i>budget</i>/<i>period</i>
+ * over all reservations) above <tt>EDFScheduler.maxUtilization</tt>, which
+ * defaults to 0.9 so that best-effort threads are never starved. A thread is
+ * charged for the time it ran whenever it yields or blocks, and on timer
+ * interrupts, where budgets are enforced. A real-time thread that overruns its budget is
+ * throttled and scheduled as a best-effort thread until its deadline passes,
+ * when it receives a fresh budget and a new deadline.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+		maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 0.9);
+		Lib.assertTrue(maxUtilization > 0 && maxUtilization <= 1);
+	}
+
+	/**
+	 * Allocate a new EDF thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored. EDF schedulers do not transfer priority.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue();
+	}
+
+	/**
+	 * Give the specified thread a real-time reservation of <i>budget</i> ticks
+	 * every <i>period</i> ticks, replacing any reservation it already has. Its
+	 * first period starts now. Must be called with interrupts disabled.
+	 *
+	 * @param thread
+	 *            the thread to reserve processor time for.
+	 * @param period
+	 *            the length of each period, in ticks.
+	 * @param budget
+	 *            the processor time the thread may use in each period.
+	 * @return <tt>true</tt> if the reservation was admitted, or
+	 *         <tt>false</tt> if it would exceed the utilization bound, in
+	 *         which case the thread's scheduling class is unchanged.
+	 */
+	public boolean setReservation(KThread thread, long period, long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+		ThreadState state = getThreadState(thread);
+
+		double utilization = totalUtilization - state.getUtilization()
+				+ (double) budget / period;
+		if (utilization > maxUtilization) {
+			Lib.debug(dbgEDF, "Rejected reservation " + budget + "/" + period
+					+ " for " + thread);
+			return false;
+		}
+
+		totalUtilization = utilization;
+		state.period = period;
+		state.budget = budget;
+		state.replenish(Machine.timer().getTime());
+
+		Lib.debug(dbgEDF, "Admitted reservation " + budget + "/" + period
+				+ " for " + thread);
+		return true;
+	}
+
+	/**
+	 * Give the current thread a real-time reservation. Equivalent to
+	 * <tt>setReservation(KThread.currentThread(), period, budget)</tt>.
+	 *
+	 * @param period
+	 *            the length of each period, in ticks.
+	 * @param budget
+	 *            the processor time the thread may use in each period.
+	 * @return <tt>true</tt> if the reservation was admitted.
+	 */
+	public boolean setReservation(long period, long budget) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean admitted = setReservation(KThread.currentThread(), period,
+				budget);
+		Machine.interrupt().restore(intStatus);
+		return admitted;
+	}
+
+	/**
+	 * Remove the reservation of the specified thread, if it has one, making it
+	 * a best-effort thread. Must be called with interrupts disabled.
+	 *
+	 * @param thread
+	 *            the thread whose reservation to remove.
+	 */
+	public void clearReservation(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+
+		totalUtilization -= state.getUtilization();
+		if (totalUtilization < 0)
+			totalUtilization = 0;
+		state.period = 0;
+	}
+
+	/**
+	 * Release the reservation of a finished thread, so its share of the
+	 * processor can be admitted to other threads.
+	 */
+	public void threadFinished(KThread thread) {
+		if (isRealTime(thread))
+			clearReservation(thread);
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified thread holds a real-time
+	 * reservation. Must be called with interrupts disabled.
+	 *
+	 * @param thread
+	 *            the thread to check.
+	 * @return <tt>true</tt> if the thread is a real-time thread.
+	 */
+	public boolean isRealTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).isRealTime();
+	}
+
+	/**
+	 * Return the total utilization of all admitted reservations.
+	 *
+	 * @return the sum of <i>budget</i>/<i>period</i> over all reservations.
+	 */
+	public double getUtilization() {
+		return totalUtilization;
+	}
+
+	/**
+	 * Charge the current thread for the ticks it ran since it was dispatched
+	 * or last charged, throttling it if its budget is exhausted. The alarm
+	 * preempts the current thread right after this returns, so a throttled
+	 * thread is requeued as a best-effort thread.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		charge(KThread.currentThread());
+	}
+
+	/**
+	 * Charge a thread that is yielding or blocking for the ticks it ran since
+	 * it was dispatched or last charged, so that a thread that blocks before
+	 * the next timer interrupt still pays for its time, and the thread running
+	 * at that interrupt does not.
+	 */
+	public void threadStopping(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		charge(thread);
+	}
+
+	/**
+	 * Charge the ticks elapsed since <tt>lastCharge</tt> to the specified
+	 * thread, which must be the thread that ran during them.
+	 */
+	private void charge(KThread thread) {
+		long time = Machine.timer().getTime();
+		long elapsed = time - lastCharge;
+		lastCharge = time;
+
+		ThreadState state = getThreadState(thread);
+		if (!state.isRealTime())
+			return;
+
+		state.remaining -= elapsed;
+		if (state.isThrottled(time))
+			Lib.debug(dbgEDF, "Throttled ", state.thread, " until ",
+					state.deadline);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that serves real-time threads in deadline order,
+	 * then best-effort and throttled threads in FIFO order.
+	 */
+	protected class EDFQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the real-time list, sorted by deadline, or to the end
+		 * of the best-effort list.
+		 *
+		 * @param thread
+		 *            the thread waiting for access.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			long time = Machine.timer().getTime();
+
+			if (state.isRealTime() && !state.isThrottled(time))
+				insertRealTime(state);
+			else
+				bestEffort.add(state);
+		}
+
+		/**
+		 * Remove the real-time thread with the earliest deadline, or the first
+		 * best-effort thread if no real-time thread is eligible.
+		 *
+		 * @return the next thread to receive access, or <tt>null</tt> if the
+		 *         queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			releaseThrottled(Machine.timer().getTime());
+
+			if (!realTime.isEmpty())
+				return realTime.removeFirst().thread;
+			if (!bestEffort.isEmpty())
+				return bestEffort.removeFirst().thread;
+
+			return null;
+		}
+
+		/**
+		 * The specified thread has received access without waiting. Assert
+		 * that no threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(realTime.isEmpty() && bestEffort.isEmpty());
+		}
+
+		/**
+		 * Remove a thread from either list.
+		 *
+		 * @param thread
+		 *            the thread to remove.
+		 * @return <tt>true</tt> if the thread was on the queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			return realTime.remove(state) || bestEffort.remove(state);
+		}
+
+		/**
+		 * Print out the contents of the queue, real-time threads first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (ThreadState state : realTime)
+				System.out.print(state.thread + "[d=" + state.deadline + "] ");
+			for (ThreadState state : bestEffort)
+				System.out.print(state.thread + " ");
+		}
+
+		private void insertRealTime(ThreadState state) {
+			ListIterator<ThreadState> i = realTime.listIterator();
+			while (i.hasNext()) {
+				if (i.next().deadline > state.deadline) {
+					i.previous();
+					break;
+				}
+			}
+			i.add(state);
+		}
+
+		/**
+		 * Move throttled threads whose deadline has passed back to the
+		 * real-time list with a fresh budget.
+		 */
+		private void releaseThrottled(long time) {
+			for (ListIterator<ThreadState> i = bestEffort.listIterator(); i
+					.hasNext();) {
+				ThreadState state = i.next();
+				if (state.isRealTime() && !state.isThrottled(time)) {
+					i.remove();
+					insertRealTime(state);
+				}
+			}
+		}
+
+		private LinkedList<ThreadState> realTime = new LinkedList<ThreadState>();
+		private LinkedList<ThreadState> bestEffort = new LinkedList<ThreadState>();
+	}
+
+	/**
+	 * The scheduling state of a thread: its reservation, if any, and the
+	 * deadline and remaining budget of its current period.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		boolean isRealTime() {
+			return period > 0;
+		}
+
+		double getUtilization() {
+			return isRealTime() ? (double) budget / period : 0;
+		}
+
+		/**
+		 * Start a new period if the current one has ended, then return
+		 * <tt>true</tt> if the budget for the current period is used up.
+		 */
+		boolean isThrottled(long time) {
+			if (time >= deadline)
+				replenish(time);
+
+			return remaining <= 0;
+		}
+
+		void replenish(long time) {
+			deadline = time + period;
+			remaining = budget;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The reservation period, or 0 for a best-effort thread. */
+		protected long period = 0;
+		/** The processor time reserved in each period. */
+		protected long budget = 0;
+		/** The absolute deadline of the current period. */
+		protected long deadline = 0;
+		/** The budget left in the current period. */
+		protected long remaining = 0;
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// Admission control
+		KThread a = new KThread(), b = new KThread(), c = new KThread(), d = new KThread();
+		double before = scheduler.getUtilization();
+		boolean admitted = scheduler.setReservation(a, 10000, 3000)
+				&& scheduler.setReservation(b, 2000, 400);
+		boolean rejected = !scheduler.setReservation(c, 1000, 900);
+		System.out.println((admitted && rejected ? "[PASS]" : "[FAIL]")
+				+ ": EDF admission control");
+
+		// Deadline ordering, best-effort threads last
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		queue.waitForAccess(c);
+		queue.waitForAccess(a);
+		queue.waitForAccess(d);
+		queue.waitForAccess(b);
+		boolean ordered = queue.nextThread() == b && queue.nextThread() == a
+				&& queue.nextThread() == c && queue.nextThread() == d
+				&& queue.nextThread() == null;
+		System.out.println((ordered ? "[PASS]" : "[FAIL]")
+				+ ": EDF queue orders by deadline");
+
+		scheduler.clearReservation(a);
+		scheduler.clearReservation(b);
+		System.out.println((Math.abs(scheduler.getUtilization() - before) < 1e-9 ? "[PASS]"
+				: "[FAIL]")
+				+ ": EDF reservations released");
+
+		Machine.interrupt().restore(intStatus);
+
+		// Budget enforcement: a spinning real-time thread must leave room for
+		// a best-effort thread
+		final int[] progress = new int[1];
+		final boolean[] done = new boolean[1];
+		KThread hog = new KThread(new Runnable() {
+			public void run() {
+				long stop = Machine.timer().getTime() + 10000;
+				while (Machine.timer().getTime() < stop)
+					Machine.interrupt().restore(Machine.interrupt().disable());
+				done[0] = true;
+			}
+		}).setName("EDF hog");
+		KThread background = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0]) {
+					progress[0]++;
+					KThread.yield();
+				}
+			}
+		}).setName("EDF background");
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.setReservation(hog, 2000, 500));
+		Machine.interrupt().restore(intStatus);
+
+		hog.fork();
+		background.fork();
+		hog.join();
+		background.join();
+
+		System.out.println((progress[0] > 0 ? "[PASS]" : "[FAIL]")
+				+ ": EDF budget throttles overrunning thread (" + progress[0]
+				+ " best-effort iterations)");
+
+		// A finished thread's reservation is released, so the same
+		// reservation can be admitted again
+		intStatus = Machine.interrupt().disable();
+		before = scheduler.getUtilization();
+		KThread reserved = new KThread(new Runnable() {
+			public void run() {
+			}
+		}).setName("EDF reserved");
+		Lib.assertTrue(scheduler.setReservation(reserved, 1000, 900));
+		Machine.interrupt().restore(intStatus);
+
+		reserved.fork();
+		reserved.join();
+
+		intStatus = Machine.interrupt().disable();
+		boolean released = Math.abs(scheduler.getUtilization() - before) < 1e-9;
+		KThread again = new KThread();
+		boolean readmitted = scheduler.setReservation(again, 1000, 900);
+		scheduler.clearReservation(again);
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println((released && readmitted ? "[PASS]" : "[FAIL]")
+				+ ": EDF releases reservations of finished threads");
+
+		// A real-time thread that blocks before each timer interrupt is
+		// charged for the time it ran, and not for the time the processor
+		// was idle. Most telling with Alarm.tickless set, where the only
+		// interrupts are the thread's own wake-ups
+		final long[] consumed = new long[1];
+		final EDFScheduler edf = scheduler;
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				ThreadState state = edf.getThreadState(KThread.currentThread());
+				for (int i = 0; i < 5; i++) {
+					long stop = Machine.timer().getTime() + 200;
+					while (Machine.timer().getTime() < stop)
+						Machine.interrupt().restore(Machine.interrupt().disable());
+					ThreadedKernel.alarm.waitUntil(300);
+				}
+
+				boolean intStatus = Machine.interrupt().disable();
+				consumed[0] = state.budget - state.remaining;
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("EDF sleeper");
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.setReservation(sleeper, 100000, 20000));
+		Machine.interrupt().restore(intStatus);
+
+		sleeper.fork();
+		sleeper.join();
+
+		System.out.println((consumed[0] >= 1000 && consumed[0] < 1500 ? "[PASS]"
+				: "[FAIL]")
+				+ ": EDF charges blocking threads for the time they ran ("
+				+ consumed[0] + " ticks)");
+	}
+
+	private static final char dbgEDF = 'e';
+
+	/** The utilization bound used for admission control. */
+	private double maxUtilization;
+	/** The sum of budget/period over all admitted reservations. */
+	private double totalUtilization = 0;
+	/**
+	 * The time the current thread was last charged or, if later, dispatched.
+	 * Every switch charges the outgoing thread, so the ticks since then all
+	 * belong to the current thread.
+	 */
+	private long lastCharge = Machine.timer().getTime();
+}
@@ -0,0 +1,97 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * A thread queue that passes every operation through to another thread queue,
+ * recording wait times, depth, and donations in a <tt>QueueStats</tt>.
+ * 
+ * <p>
+ * A donation is counted whenever a thread starts waiting and the effective
+ * priority of the thread that has access rises as a result, so queues that do
+ * not transfer priority, and schedulers without priorities, never record any.
+ */
+class InstrumentedThreadQueue extends ThreadQueue {
+	/**
+	 * Allocate a new instrumented thread queue.
+	 * 
+	 * @param queue
+	 *            the queue to pass operations through to.
+	 * @param stats
+	 *            where to record statistics.
+	 * @param transferPriority
+	 *            <tt>true</tt> if <i>queue</i> transfers priority.
+	 * @param scheduler
+	 *            the scheduler that created <i>queue</i>.
+	 */
+	InstrumentedThreadQueue(ThreadQueue queue, QueueStats stats,
+			boolean transferPriority, Scheduler scheduler) {
+		this.queue = queue;
+		this.stats = stats;
+		this.transferPriority = transferPriority;
+		this.scheduler = scheduler;
+	}
+
+	public void waitForAccess(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		boolean watchDonation = transferPriority && owner != null;
+		int before = watchDonation ? scheduler.getEffectivePriority(owner) : 0;
+
+		queue.waitForAccess(thread);
+
+		if (watchDonation && scheduler.getEffectivePriority(owner) > before)
+			stats.donated();
+
+		if (waitingSince.put(thread, Machine.timer().getTime()) == null)
+			stats.queued(waitingSince.size());
+	}
+
+	public KThread nextThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = queue.nextThread();
+		if (thread != null) {
+			Long since = waitingSince.remove(thread);
+			if (since != null)
+				stats.dispatched(Machine.timer().getTime() - since);
+		}
+
+		owner = thread;
+		return thread;
+	}
+
+	public void acquire(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		queue.acquire(thread);
+		owner = thread;
+	}
+
+	public boolean remove(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!queue.remove(thread))
+			return false;
+
+		waitingSince.remove(thread);
+		stats.removed();
+		return true;
+	}
+
+	public void print() {
+		queue.print();
+	}
+
+	private ThreadQueue queue;
+	private QueueStats stats;
+	private boolean transferPriority;
+	private Scheduler scheduler;
+
+	/** The thread that last received access, if it is known. */
+	private KThread owner = null;
+	/** The time each waiting thread was queued. */
+	private HashMap<KThread, Long> waitingSince = new HashMap<KThread, Long>();
+}
@@ -57,12 +57,14 @@ public class KThread {
 		if (currentThread != null) {
 			tcb = new TCB();
 		} else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false,
+					"KThread.readyQueue");
 			readyQueue.acquire(this);
 
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
+			Trace.nameThread(id, toString());
 			restoreState();
 
 			createIdleThread();
@@ -120,6 +122,30 @@ public class KThread {
 		return name;
 	}
 
+	/**
+	 * Charge this thread's CPU time to a group account, such as its user
+	 * process's, as well as to its own. Does nothing if <i>account</i> is
+	 * <tt>null</tt>.
+	 * 
+	 * @param account
+	 *            the group account, from <tt>CpuUsage.newAccount()</tt>.
+	 * @return this thread.
+	 */
+	public KThread setCpuAccount(CpuUsage account) {
+		cpuAccount = account;
+		return this;
+	}
+
+	/**
+	 * Get the CPU time charged to this thread so far.
+	 * 
+	 * @return this thread's account, or <tt>null</tt> if CPU accounting is not
+	 *         enabled.
+	 */
+	public CpuUsage getCpuUsage() {
+		return cpuUsage;
+	}
+
 	/**
 	 * Get the full name of this thread. This includes its name along with its
 	 * numerical ID. This name is used for debugging purposes only.
@@ -154,11 +180,12 @@ public class KThread {
 		Lib.assertTrue(status == statusNew);
 		Lib.assertTrue(target != null);
 
-		Lib.debug(dbgThread, "Forking thread: " + toString() + " Runnable: "
-				+ target);
+		Lib.debug(dbgThread, "Forking thread: ", this, " Runnable: ", target);
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		Trace.nameThread(id, toString());
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -177,7 +204,7 @@ public class KThread {
 	}
 
 	private void begin() {
-		Lib.debug(dbgThread, "Beginning thread: " + toString());
+		Lib.debug(dbgThread, "Beginning thread: ", this);
 
 		Lib.assertTrue(this == currentThread);
 
@@ -197,7 +224,7 @@ public class KThread {
 	 * delete this thread.
 	 */
 	public static void finish() {
-		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+		Lib.debug(dbgThread, "Finishing thread: ", currentThread);
 
 		Machine.interrupt().disable();
 
@@ -207,6 +234,8 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
+
+		ThreadedKernel.scheduler.threadFinished(currentThread);
 		
 		// wake up all the threads waiting on the current thread
 		currentThread.unjoin();
@@ -246,12 +275,14 @@ public class KThread {
 	 * called with interrupts disabled.
 	 */
 	public static void yield() {
-		Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+		Lib.debug(dbgThread, "Yielding thread: ", currentThread);
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		ThreadedKernel.scheduler.threadStopping(currentThread);
+
 		currentThread.ready();
 
 		runNextThread();
@@ -259,6 +290,16 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Preempt the current thread. The same as <tt>yield()</tt>, except that
+	 * the switch is accounted as involuntary. Called by the timer interrupt
+	 * handler at the end of a time slice.
+	 */
+	static void preempt() {
+		preempting = true;
+		KThread.yield();
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -271,13 +312,15 @@ public class KThread {
 	 * scheduled this thread to be destroyed by the next thread to run.
 	 */
 	public static void sleep() {
-		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+		Lib.debug(dbgThread, "Sleeping thread: ", currentThread);
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
+		ThreadedKernel.scheduler.threadStopping(currentThread);
+
 		runNextThread();
 	}
 
@@ -286,14 +329,22 @@ public class KThread {
 	 * ready queue.
 	 */
 	public void ready() {
-		Lib.debug(dbgThread, "Ready thread: " + toString());
+		Lib.debug(dbgThread, "Ready thread: ", this);
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
+		if (cpuUsage != null)
+			CpuUsage.readied(this, status == statusBlocked);
+
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+
+			if (ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReady();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -308,9 +359,9 @@ public class KThread {
 			/*
 			 * Cannot join to a finished thread
 			 */
-			Lib.debug(dbgThread, "Attempting to join finished thread: " + toString());
+			Lib.debug(dbgThread, "Attempting to join finished thread: ", this);
 		} else {
-			Lib.debug(dbgThread, "Joining to thread: " + toString());
+			Lib.debug(dbgThread, "Joining to thread: ", this);
 
 			// A thread cannot join to itself
 			Lib.assertTrue(this != currentThread);
@@ -364,10 +415,27 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
+
+		if (nextThread != currentThread && ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.threadDispatched();
 
 		nextThread.run();
 	}
 
+	/**
+	 * Tests whether any thread other than the idle thread is waiting on the
+	 * ready queue. Must be called with interrupts disabled.
+	 * 
+	 * @return <tt>true</tt> if there are threads ready to run.
+	 */
+	static boolean hasReadyThreads() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numReady > 0;
+	}
+
 	/**
 	 * Dispatch the CPU to this thread. Save the state of the current thread,
 	 * switch to the new thread by calling <tt>TCB.contextSwitch()</tt>, and
@@ -395,11 +463,17 @@ public class KThread {
 
 		currentThread.saveState();
 
-		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-				+ " to: " + toString());
+		if (cpuUsage != null)
+			CpuUsage.switching(currentThread, this, preempting,
+					this != idleThread);
+		preempting = false;
+
+		Lib.debug(dbgThread, "Switching from: ", currentThread, " to: ", this);
 
 		currentThread = this;
 
+		Trace.switchThread(id);
+
 		tcb.contextSwitch();
 
 		currentThread.restoreState();
@@ -410,7 +484,7 @@ public class KThread {
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
 	 */
 	protected void restoreState() {
-		Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+		Lib.debug(dbgThread, "Running thread: ", currentThread);
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
@@ -504,6 +578,11 @@ public class KThread {
 	private Runnable target;
 	private TCB tcb;
 
+	/** The CPU time charged to this thread, if accounting is enabled. */
+	CpuUsage cpuUsage = CpuUsage.forThread(this);
+	/** The group account also charged for this thread, if any. */
+	CpuUsage cpuAccount = null;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -513,12 +592,17 @@ public class KThread {
 	private static int numCreated = 0;
 
 	private static ThreadQueue readyQueue = null;
+	/** Number of threads waiting on <tt>readyQueue</tt>. */
+	private static int numReady = 0;
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
+	/** Set while the current thread is being preempted. */
+	private static boolean preempting = false;
 
 	/**
 	 * A list of threads that have joined to this thread
 	 */
-	private ThreadQueue linkedThreads = ThreadedKernel.scheduler.newThreadQueue(true);
+	private ThreadQueue linkedThreads = ThreadedKernel.scheduler.newThreadQueue(
+			true, "KThread.join");
 }
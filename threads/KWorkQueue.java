@@ -0,0 +1,276 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A fixed pool of kernel worker threads that run submitted tasks. Tasks may be
+ * submitted from a thread or from an interrupt handler, so an interrupt
+ * handler can defer any work that might block (a bottom half) instead of
+ * waking a dedicated thread.
+ *
+ * <p>
+ * Tasks normally run in submission order on whichever worker is free, so
+ * several may run at once. Tasks submitted with the same key instead run one
+ * at a time, in submission order.
+ *
+ * <p>
+ * The work queue synchronizes by disabling interrupts rather than with a
+ * lock, which is what makes submitting from interrupt handlers safe.
+ */
+public class KWorkQueue {
+	/**
+	 * Allocate a new work queue and fork its workers.
+	 *
+	 * @param numWorkers
+	 *            the number of worker threads. Must be positive.
+	 * @param name
+	 *            the name of the queue; workers are named after it.
+	 */
+	public KWorkQueue(int numWorkers, String name) {
+		Lib.assertTrue(numWorkers > 0);
+
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName(name + " " + i).fork();
+		}
+	}
+
+	/**
+	 * A task submitted to a work queue, which can be waited for.
+	 */
+	public static class Work {
+		private Work(Runnable task, Object key) {
+			this.task = task;
+			this.key = key;
+		}
+
+		/**
+		 * Wait for this task to finish. Must not be called by the task itself,
+		 * or from an interrupt handler.
+		 */
+		public void join() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			if (!done) {
+				joiners.add(KThread.currentThread());
+				KThread.sleep();
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Test whether this task has finished.
+		 *
+		 * @return <tt>true</tt> if the task has run to completion.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		private Runnable task;
+		private Object key;
+		private boolean done = false;
+		private LinkedList<KThread> joiners = new LinkedList<KThread>();
+	}
+
+	/**
+	 * Submit a task to run on a worker. May be called from an interrupt
+	 * handler.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @return the submitted work, which can be joined.
+	 */
+	public Work submit(Runnable task) {
+		return submit(null, task);
+	}
+
+	/**
+	 * Submit a task to run on a worker after every task previously submitted
+	 * with the same key has finished. May be called from an interrupt handler.
+	 *
+	 * @param key
+	 *            the key to order the task by, or <tt>null</tt> to let it run
+	 *            alongside any other task.
+	 * @param task
+	 *            the task to run.
+	 * @return the submitted work, which can be joined.
+	 */
+	public Work submit(Object key, Runnable task) {
+		Lib.assertTrue(task != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Work work = new Work(task, key);
+
+		if (key == null) {
+			makeRunnable(work);
+		} else {
+			// A key is present in the map while one of its tasks is queued or
+			// running; later tasks wait behind it.
+			LinkedList<Work> waiting = keyed.get(key);
+			if (waiting != null) {
+				waiting.add(work);
+			} else {
+				keyed.put(key, new LinkedList<Work>());
+				makeRunnable(work);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return work;
+	}
+
+	/**
+	 * Return an interrupt handler that defers <i>handler</i> to this work
+	 * queue. Deferred runs of the handler are ordered, and do not overlap.
+	 *
+	 * @param handler
+	 *            the work to do for each interrupt, which may block.
+	 * @return an interrupt handler that submits <i>handler</i>.
+	 */
+	public Runnable deferred(final Runnable handler) {
+		return new Runnable() {
+			public void run() {
+				submit(handler, handler);
+			}
+		};
+	}
+
+	/**
+	 * Return the number of tasks submitted but not yet started.
+	 *
+	 * @return the number of tasks waiting to run.
+	 */
+	public int pending() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int n = runnable.size();
+		for (LinkedList<Work> waiting : keyed.values())
+			n += waiting.size();
+
+		Machine.interrupt().restore(intStatus);
+		return n;
+	}
+
+	private void makeRunnable(Work work) {
+		runnable.add(work);
+
+		if (!idle.isEmpty())
+			idle.removeFirst().ready();
+	}
+
+	/**
+	 * The body of each worker thread: run tasks forever, sleeping while there
+	 * are none.
+	 */
+	private void work() {
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			while (runnable.isEmpty()) {
+				idle.add(KThread.currentThread());
+				KThread.sleep();
+			}
+			Work work = runnable.removeFirst();
+
+			Machine.interrupt().restore(intStatus);
+
+			work.task.run();
+
+			intStatus = Machine.interrupt().disable();
+
+			work.done = true;
+			while (!work.joiners.isEmpty())
+				work.joiners.removeFirst().ready();
+
+			if (work.key != null) {
+				LinkedList<Work> waiting = keyed.get(work.key);
+				if (waiting.isEmpty())
+					keyed.remove(work.key);
+				else
+					makeRunnable(waiting.removeFirst());
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		KWorkQueue queue = new KWorkQueue(3, "test worker");
+
+		// Unkeyed tasks run concurrently, and can be joined
+		final int[] running = new int[1], maxRunning = new int[1];
+		Work[] works = new Work[3];
+		for (int i = 0; i < works.length; i++) {
+			works[i] = queue.submit(new Runnable() {
+				public void run() {
+					running[0]++;
+					maxRunning[0] = Math.max(maxRunning[0], running[0]);
+					ThreadedKernel.alarm.waitUntil(100);
+					running[0]--;
+				}
+			});
+		}
+		for (Work work : works)
+			work.join();
+		System.out.println((maxRunning[0] == 3 && works[0].isDone() ? "[PASS]"
+				: "[FAIL]")
+				+ ": KWorkQueue ran " + maxRunning[0] + " tasks at once");
+
+		// Tasks with the same key run one at a time, in order
+		final StringBuffer order = new StringBuffer();
+		Object key = new Object();
+		Work last = null;
+		for (int i = 0; i < 5; i++) {
+			final int n = i;
+			last = queue.submit(key, new Runnable() {
+				public void run() {
+					order.append(n);
+					ThreadedKernel.alarm.waitUntil(10 * (5 - n));
+					order.append(n);
+				}
+			});
+		}
+		last.join();
+		System.out.println((order.toString().equals("0011223344") ? "[PASS]"
+				: "[FAIL]")
+				+ ": KWorkQueue ran keyed tasks in order (" + order + ")");
+
+		// Work deferred by an interrupt handler, which runs with interrupts
+		// disabled, runs later on a worker
+		final KThread[] ranOn = new KThread[1];
+		final Semaphore done = new Semaphore(0);
+		final Runnable handler = queue.deferred(new Runnable() {
+			public void run() {
+				ranOn[0] = KThread.currentThread();
+				done.V();
+			}
+		});
+		boolean intStatus = Machine.interrupt().disable();
+		handler.run();
+		boolean ranInHandler = ranOn[0] != null;
+		Machine.interrupt().restore(intStatus);
+		done.P();
+		System.out.println((!ranInHandler
+				&& ranOn[0] != KThread.currentThread() ? "[PASS]" : "[FAIL]")
+				+ ": KWorkQueue ran work deferred from an interrupt handler");
+	}
+
+	/** Work that may start as soon as a worker is free. */
+	private LinkedList<Work> runnable = new LinkedList<Work>();
+	/** For each key with a task queued or running, the tasks behind it. */
+	private HashMap<Object, LinkedList<Work>> keyed = new HashMap<Object, LinkedList<Work>>();
+	/** Workers sleeping until there is work. */
+	private LinkedList<KThread> idle = new LinkedList<KThread>();
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a lock:
@@ -23,6 +25,22 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this("Lock");
+	}
+
+	/**
+	 * Allocate a new named lock. The lock will initially be <i>free</i>. The
+	 * name identifies the lock in scheduler statistics and contention
+	 * profiles.
+	 * 
+	 * @param name
+	 *            the name of this lock.
+	 */
+	public Lock(String name) {
+		this.name = name;
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(true, name);
+		profile = LockProfiler.forName("Lock", name);
+		traceName = Trace.intern(name);
 	}
 
 	/**
@@ -36,11 +54,18 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long start = Machine.timer().getTime();
 			waitQueue.waitForAccess(thread);
+			Trace.begin(Trace.lockWait, traceName);
 			KThread.sleep();
+			Trace.end(Trace.lockWait, traceName);
+
+			if (profile != null)
+				profile.waited(thread, Machine.timer().getTime() - start);
 		} else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+			granted(false);
 		}
 
 		Lib.assertTrue(lockHolder == thread);
@@ -48,6 +73,62 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, giving up if it is still busy after
+	 * <i>timeout</i> ticks. The current thread must not already hold this
+	 * lock.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait. If this is not
+	 *            positive, return immediately.
+	 * @return <tt>true</tt> if the lock was acquired, or <tt>false</tt> if the
+	 *         wait timed out.
+	 */
+	public boolean tryAcquire(long timeout) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		final KThread thread = KThread.currentThread();
+
+		if (lockHolder == null) {
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+			granted(false);
+		} else if (timeout > 0) {
+			long start = Machine.timer().getTime();
+			waitQueue.waitForAccess(thread);
+
+			Alarm.Timeout timeoutEntry = new Alarm.Timeout(thread) {
+				boolean cancelWait() {
+					return waitQueue.remove(thread);
+				}
+			};
+			ThreadedKernel.alarm.schedule(timeoutEntry, timeout);
+			Trace.begin(Trace.lockWait, traceName);
+			KThread.sleep();
+			Trace.end(Trace.lockWait, traceName);
+
+			ThreadedKernel.alarm.cancel(timeoutEntry);
+
+			if (profile != null)
+				profile.waited(thread, Machine.timer().getTime() - start);
+		}
+
+		boolean acquired = (lockHolder == thread);
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
+	/**
+	 * Acquire this lock if it is free, without waiting.
+	 * 
+	 * @return <tt>true</tt> if the lock was acquired.
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(0);
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -56,12 +137,54 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
+		if (profile != null)
+			profile.held(Machine.timer().getTime() - heldSince);
+
+		if ((lockHolder = waitQueue.nextThread()) != null) {
+			granted(true);
+
+			// A thread moved here by wait morphing has waited for the lock
+			// since it was requeued, and never returns to acquire() to say so
+			Long since = requeuedAt.remove(lockHolder);
+			if (since != null)
+				profile.waited(lockHolder, Machine.timer().getTime() - since);
+
 			lockHolder.ready();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Record that <tt>lockHolder</tt> has just been given this lock.
+	 */
+	private void granted(boolean contended) {
+		if (profile != null) {
+			profile.acquired(contended);
+			heldSince = Machine.timer().getTime();
+		}
+	}
+
+	/**
+	 * Make a sleeping thread wait for this lock, as if it had called
+	 * <tt>acquire()</tt>, so that it is woken holding the lock when the lock
+	 * becomes free. Condition variables use this to move woken waiters
+	 * straight onto the lock's wait queue, rather than readying them only for
+	 * them to block again on the lock held by the waker. Must be called with
+	 * interrupts disabled, by the thread holding this lock.
+	 * 
+	 * @param thread
+	 *            a sleeping thread that is not waiting on any other queue.
+	 */
+	void requeue(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(isHeldByCurrentThread() && thread != lockHolder);
+
+		waitQueue.waitForAccess(thread);
+		if (profile != null)
+			requeuedAt.put(thread, Machine.timer().getTime());
+	}
+
 	/**
 	 * Test if the current thread holds this lock.
 	 * 
@@ -71,6 +194,53 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		final Semaphore held = new Semaphore(0);
+
+		// A timed acquire of a busy lock times out
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(2000);
+				lock.release();
+			}
+		}).setName("lock holder");
+		holder.fork();
+		held.P();
+
+		boolean acquired = lock.tryAcquire(500);
+		System.out.println((!acquired ? "[PASS]" : "[FAIL]")
+				+ ": Lock.tryAcquire() timed out on a busy lock");
+
+		// ...and succeeds once the holder lets go within the timeout
+		acquired = lock.tryAcquire(100000);
+		System.out.println((acquired && lock.isHeldByCurrentThread() ? "[PASS]"
+				: "[FAIL]")
+				+ ": Lock.tryAcquire() acquired the lock when released");
+		lock.release();
+		holder.join();
+
+		System.out.println((lock.tryAcquire() ? "[PASS]" : "[FAIL]")
+				+ ": Lock.tryAcquire() acquired a free lock");
+		lock.release();
+	}
+
+	/** The name of this lock. */
+	String name;
 	private KThread lockHolder = null;
-	private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	private ThreadQueue waitQueue;
+
+	/** The name of this lock in the event trace. */
+	private int traceName;
+	/** Contention profile, if profiling is enabled. */
+	private LockProfiler profile;
+	/** The time the current holder was given the lock, when profiling. */
+	private long heldSince;
+	/** When each thread was moved here by <tt>requeue()</tt>, when profiling. */
+	private HashMap<KThread, Long> requeuedAt = new HashMap<KThread, Long>();
 }
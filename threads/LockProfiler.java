@@ -0,0 +1,187 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Contention statistics for all the locks, semaphores, or condition variables
+ * that share a name, in simulated ticks: how often they were acquired, how
+ * often the acquiring thread had to wait, for how long, how long locks were
+ * held, and which threads waited the most.
+ *
+ * <p>
+ * Profiling is off unless <tt>LockProfiler.enabled</tt> is set, in which case
+ * every synchronization object created afterwards is profiled and the
+ * profiles are printed, most contended first, when the kernel terminates.
+ */
+class LockProfiler {
+	private LockProfiler(String kind, String name) {
+		this.kind = kind;
+		this.name = name;
+	}
+
+	/**
+	 * Return the profile for the specified object, creating it if this is the
+	 * first object of that kind with that name.
+	 *
+	 * @param kind
+	 *            the kind of object, such as <tt>"Lock"</tt>.
+	 * @param name
+	 *            the name of the object.
+	 * @return the profile shared by all objects of that kind and name, or
+	 *         <tt>null</tt> if profiling is not enabled.
+	 */
+	static LockProfiler forName(String kind, String name) {
+		if (!enabled)
+			return null;
+
+		String key = kind + " " + name;
+		LockProfiler profile = all.get(key);
+		if (profile == null) {
+			profile = new LockProfiler(kind, name);
+			all.put(key, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Record an acquisition.
+	 *
+	 * @param contended
+	 *            <tt>true</tt> if the acquiring thread had to wait.
+	 */
+	void acquired(boolean contended) {
+		acquisitions++;
+		if (contended)
+			this.contended++;
+	}
+
+	/**
+	 * Record that a thread waited, whether or not it then acquired the object.
+	 *
+	 * @param thread
+	 *            the thread that waited.
+	 * @param ticks
+	 *            how long it waited.
+	 */
+	void waited(KThread thread, long ticks) {
+		totalWait += ticks;
+		if (ticks > maxWait)
+			maxWait = ticks;
+
+		String waiter = thread.getName();
+		Long total = waiters.get(waiter);
+		waiters.put(waiter, (total == null ? 0 : total) + ticks);
+	}
+
+	/**
+	 * Record that a thread slept on a condition variable until it was woken
+	 * or timed out.
+	 *
+	 * @param thread
+	 *            the thread that slept.
+	 * @param ticks
+	 *            how long it slept, including reacquiring the lock.
+	 */
+	void slept(KThread thread, long ticks) {
+		acquired(true);
+		waited(thread, ticks);
+	}
+
+	/**
+	 * Record that a lock was released after being held for some time.
+	 */
+	void held(long ticks) {
+		releases++;
+		totalHold += ticks;
+		if (ticks > maxHold)
+			maxHold = ticks;
+	}
+
+	/**
+	 * Print every profile, the locks and semaphores with the most total wait
+	 * time first, followed by the condition variables. Prints nothing if
+	 * profiling is not enabled.
+	 */
+	static void printAll() {
+		if (all.isEmpty())
+			return;
+
+		ArrayList<LockProfiler> sorted = new ArrayList<LockProfiler>(all
+				.values());
+		Collections.sort(sorted, new Comparator<LockProfiler>() {
+			public int compare(LockProfiler a, LockProfiler b) {
+				// Sleeping on a condition is not contention; list those last
+				boolean aCondition = a.kind.equals("Condition"), bCondition = b.kind
+						.equals("Condition");
+				if (aCondition != bCondition)
+					return aCondition ? 1 : -1;
+				if (a.totalWait != b.totalWait)
+					return a.totalWait > b.totalWait ? -1 : 1;
+				if (a.contended != b.contended)
+					return a.contended > b.contended ? -1 : 1;
+				return (a.kind + a.name).compareTo(b.kind + b.name);
+			}
+		});
+
+		System.out.println("Lock contention:");
+		for (LockProfiler profile : sorted) {
+			if (profile.acquisitions > 0)
+				profile.print();
+		}
+	}
+
+	private void print() {
+		if (kind.equals("Condition"))
+			System.out.println("  " + kind + " " + name + ": waits "
+					+ acquisitions);
+		else
+			System.out.println("  " + kind + " " + name + ": acquired "
+					+ acquisitions + ", contended " + contended + " ("
+					+ (100 * contended / acquisitions) + "%)");
+
+		if (totalWait > 0)
+			System.out.println("    wait ticks: total " + totalWait + ", max "
+					+ maxWait + ", top waiters " + topWaiters(3));
+
+		if (releases > 0)
+			System.out.println("    hold ticks: total " + totalHold + ", avg "
+					+ totalHold / releases + ", max " + maxHold);
+	}
+
+	private String topWaiters(int n) {
+		ArrayList<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(
+				waiters.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a,
+					Map.Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < n && i < sorted.size(); i++) {
+			if (i > 0)
+				buf.append(", ");
+			buf.append(sorted.get(i).getKey() + " (" + sorted.get(i).getValue()
+					+ ")");
+		}
+		return buf.toString();
+	}
+
+	private String kind, name;
+	private long acquisitions = 0, contended = 0, releases = 0;
+	private long totalWait = 0, maxWait = 0;
+	private long totalHold = 0, maxHold = 0;
+	/** Total wait time of each waiting thread, by thread name. */
+	private HashMap<String, Long> waiters = new HashMap<String, Long>();
+
+	private static boolean enabled = Config.getBoolean(
+			"LockProfiler.enabled", false);
+	private static HashMap<String, LockProfiler> all = new HashMap<String, LockProfiler>();
+}
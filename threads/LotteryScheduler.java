@@ -162,8 +162,31 @@ public class LotteryScheduler extends Scheduler {
 			getLotteryThreadState(thread).acquire(this);
 		}
 
-		@Override//You don't need to implement this unless you want
+		@Override
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			LotteryThreadState lts = getLotteryThreadState(thread);
+			if (!lts.waiting.remove(this))
+				return false;
+			removeFromWaiting(lts);
+			return true;
+		}
+
+		/**
+		 * Print out the thread that has access, followed by the waiting threads,
+		 * each with its effective number of tickets.
+		 */
+		@Override
 		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (lockingThread != null)
+				System.out.print("holder " + lockingThread.thread + "("
+						+ lockingThread.getEffectiveTickets() + ") ");
+
+			for (LotteryThreadState lts : waiting)
+				System.out.print(lts.thread + "(" + lts.getEffectiveTickets()
+						+ ") ");
 		}
 
 		/**
@@ -262,11 +285,10 @@ public class LotteryScheduler extends Scheduler {
 				waiting.add(lotteryQueue);
 				lotteryQueue.waiting.add(this);
 
-				//This check prevents a more expensive check during fullUpdateEffectivePriority
+				//The lottery total must include the new waiter even when the holder is updated too
+				lotteryQueue.updateEffectiveTickets();//You may be able to get away with something quicker
 				if (lotteryQueue.transferTickets && lotteryQueue.lockingThread != null)
 					lotteryQueue.lockingThread.fullUpdateEffectiveTickets();
-				else
-					lotteryQueue.updateEffectiveTickets();//You may be able to get away with something quicker
 			}
 		}
 
@@ -155,6 +155,11 @@ public class PriorityScheduler extends Scheduler {
 			}
 		}
 
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			return getThreadState(thread).cancelWait(this);
+		}
+
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
@@ -165,7 +170,23 @@ public class PriorityScheduler extends Scheduler {
 			return waitQueue.peek();
 		}
 
+		/**
+		 * Print out the thread that has access, followed by the waiting threads
+		 * in the order they would be chosen, each with its effective priority.
+		 */
 		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (lockingThread != null)
+				System.out.print("holder " + lockingThread + "("
+						+ getThreadState(lockingThread).getEffectivePriority()
+						+ ") ");
+
+			ThreadState[] waiting = waitQueue.toArray(new ThreadState[0]);
+			java.util.Arrays.sort(waiting, waitQueue.comparator());
+			for (ThreadState state : waiting)
+				System.out.print(state.thread + "("
+						+ state.getEffectivePriority() + ") ");
 		}
 
 		/**
@@ -349,6 +370,33 @@ public class PriorityScheduler extends Scheduler {
 			}
 		}
 
+		/**
+		 * Called when <tt>remove(thread)</tt> (where <tt>thread</tt> is the
+		 * associated thread) is invoked on the specified priority queue. The
+		 * associated thread stops waiting on the queue, and stops donating its
+		 * priority to the queue's locking thread.
+		 * 
+		 * @param priorityQ
+		 *            the queue the associated thread is no longer waiting on.
+		 * @return <tt>true</tt> if the associated thread was waiting on the
+		 *         queue.
+		 * 
+		 * @see nachos.threads.ThreadQueue#remove
+		 */
+		boolean cancelWait(PriorityQueue priorityQ) {
+			if (!waiting.containsKey(priorityQ))
+				return false;
+			
+			//Take it out of the queue while the comparator can still see its wait time
+			priorityQ.waitQueue.remove(this);
+			waiting.remove(priorityQ);
+			
+			if (priorityQ.lockingThread != null)
+				getThreadState(priorityQ.lockingThread).updateEffectivePriority();
+			
+			return true;
+		}
+
 		/**
 		 * Called when the associated thread has acquired access to whatever is
 		 * guarded by <tt>waitQueue</tt>. This can occur either as a result of
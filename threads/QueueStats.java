@@ -0,0 +1,123 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Wait statistics for all the instrumented thread queues that share a name:
+ * how long threads waited between being queued and being dispatched, the
+ * deepest any of the queues got, and how often waiting threads donated
+ * priority.
+ * 
+ * @see nachos.threads.Scheduler#newThreadQueue(boolean, String)
+ */
+class QueueStats {
+	private QueueStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Return the statistics for the specified name, creating them if this is
+	 * the first queue with that name.
+	 * 
+	 * @param name
+	 *            the name of the queue.
+	 * @return the statistics shared by all queues with that name.
+	 */
+	static QueueStats forName(String name) {
+		QueueStats stats = all.get(name);
+		if (stats == null) {
+			stats = new QueueStats(name);
+			all.put(name, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Record that a thread was queued, leaving a queue of the given depth.
+	 */
+	void queued(int depth) {
+		queued++;
+		if (depth > maxDepth)
+			maxDepth = depth;
+	}
+
+	/**
+	 * Record that a thread was dispatched after waiting the given number of
+	 * ticks.
+	 */
+	void dispatched(long wait) {
+		dispatched++;
+		totalWait += wait;
+		if (wait > maxWait)
+			maxWait = wait;
+
+		int bucket = 64 - Long.numberOfLeadingZeros(wait);
+		histogram[bucket]++;
+	}
+
+	/**
+	 * Record that a thread was taken off a queue without being dispatched.
+	 */
+	void removed() {
+		removed++;
+	}
+
+	/**
+	 * Record that a thread raised the effective priority of a queue's owner.
+	 */
+	void donated() {
+		donations++;
+	}
+
+	/**
+	 * Print the statistics of every named queue, those with the most total
+	 * wait time first. Prints nothing if no queues were instrumented.
+	 */
+	static void printAll() {
+		if (all.isEmpty())
+			return;
+
+		ArrayList<QueueStats> sorted = new ArrayList<QueueStats>(all.values());
+		Collections.sort(sorted, new Comparator<QueueStats>() {
+			public int compare(QueueStats a, QueueStats b) {
+				if (a.totalWait != b.totalWait)
+					return a.totalWait > b.totalWait ? -1 : 1;
+				return a.name.compareTo(b.name);
+			}
+		});
+
+		System.out.println("Thread queues:");
+		for (QueueStats stats : sorted)
+			stats.print();
+	}
+
+	private void print() {
+		System.out.println("  " + name + ": queued " + queued + ", dispatched "
+				+ dispatched + ", removed " + removed + ", max depth "
+				+ maxDepth + ", donations " + donations);
+
+		if (dispatched == 0)
+			return;
+
+		StringBuffer buf = new StringBuffer("    wait ticks: avg "
+				+ totalWait / dispatched + ", max " + maxWait + ", histogram");
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] != 0)
+				buf.append(" " + (i == 0 ? "0" : "<" + (1L << i)) + ":"
+						+ histogram[i]);
+		}
+		System.out.println(buf);
+	}
+
+	private String name;
+	private long queued = 0, dispatched = 0, removed = 0, donations = 0;
+	private int maxDepth = 0;
+	private long totalWait = 0, maxWait = 0;
+	/** Bucket <i>i</i> counts waits of less than 2<sup><i>i</i></sup> ticks. */
+	private long[] histogram = new long[65];
+
+	private static HashMap<String, QueueStats> all = new HashMap<String, QueueStats>();
+}
@@ -0,0 +1,461 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * readers at once, or by a single writer:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for
+ * the lock, then join the readers.
+ * <li><tt>acquireWrite()</tt>: wait until the lock is held by nobody, then
+ * hold it exclusively.
+ * <li><tt>upgrade()</tt>: turn a read hold into a write hold, waiting for the
+ * other readers to leave.
+ * <li><tt>downgrade()</tt>: turn a write hold into a read hold, letting any
+ * waiting readers in with it.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it, so a steady stream of readers cannot starve writers. When the last
+ * holder leaves, a waiting writer gets the lock if there is one, and
+ * otherwise all waiting readers get it together.
+ *
+ * <p>
+ * If the lock transfers priority, every holder owns a thread queue on which
+ * every waiting thread waits, so waiters donate their priority to all the
+ * readers holding the lock, not just to one. As with <tt>Lock</tt>, only the
+ * thread holding the lock may release it, and holds are not recursive.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new reader-writer lock that transfers priority. The lock will
+	 * initially be held by nobody.
+	 */
+	public ReadWriteLock() {
+		this("ReadWriteLock", true);
+	}
+
+	/**
+	 * Allocate a new named reader-writer lock. The lock will initially be held
+	 * by nobody.
+	 *
+	 * @param name
+	 *            the name of this lock, for scheduler statistics.
+	 * @param transferPriority
+	 *            <tt>true</tt> if waiting threads should donate priority to
+	 *            the threads holding the lock.
+	 */
+	public ReadWriteLock(String name, boolean transferPriority) {
+		this.name = name;
+		this.transferPriority = transferPriority;
+		writeQueue = ThreadedKernel.scheduler.newThreadQueue(false, name);
+	}
+
+	/**
+	 * Atomically wait until no writer holds or is waiting for this lock, then
+	 * hold it for reading. The current thread must not already hold this lock.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && waitingWriters.isEmpty() && upgrader == null) {
+			readers.add(thread);
+			addHolder(thread);
+		} else {
+			waitingReaders.add(thread);
+			startWaiting(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(readers.contains(thread));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock from reading. If the current thread was
+	 * the last reader, hand the lock to the next waiting thread.
+	 */
+	public void releaseRead() {
+		Lib.assertTrue(isReadHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		readers.remove(thread);
+		removeHolder(thread);
+
+		if (upgrader != null && readers.size() == 1) {
+			KThread next = upgrader;
+			upgrader = null;
+			stopWaiting(next);
+			readers.remove(next);
+			writer = next;
+			next.ready();
+		} else if (readers.isEmpty()) {
+			dispatch();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically wait until this lock is held by nobody, then hold it for
+	 * writing. The current thread must not already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && readers.isEmpty()) {
+			writer = thread;
+			addHolder(thread);
+		} else {
+			waitingWriters.add(thread);
+			writeQueue.waitForAccess(thread);
+			startWaiting(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock from writing, handing it to the next
+	 * waiting thread.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		removeHolder(KThread.currentThread());
+		dispatch();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically turn the current thread's read hold into a write hold,
+	 * waiting for the other readers to release the lock. A pending upgrade
+	 * takes precedence over waiting writers. Only one upgrade may be pending at
+	 * a time, since two readers waiting for each other to leave would
+	 * deadlock.
+	 *
+	 * @return <tt>true</tt> if the current thread now holds this lock for
+	 *         writing, or <tt>false</tt> if another reader is already waiting
+	 *         to upgrade, in which case the current thread still holds the
+	 *         lock for reading and should release it before acquiring it for
+	 *         writing.
+	 */
+	public boolean upgrade() {
+		Lib.assertTrue(isReadHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (upgrader != null) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		if (readers.size() == 1) {
+			readers.remove(thread);
+			writer = thread;
+		} else {
+			upgrader = thread;
+			startWaiting(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Atomically turn the current thread's write hold into a read hold. If no
+	 * writer is waiting, the waiting readers join the current thread.
+	 */
+	public void downgrade() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		writer = null;
+		readers.add(thread);
+
+		if (waitingWriters.isEmpty())
+			admitReaders();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for reading.
+	 *
+	 * @return true if the current thread holds this lock for reading.
+	 */
+	public boolean isReadHeldByCurrentThread() {
+		return readers.contains(KThread.currentThread());
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writer == KThread.currentThread();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for reading or writing.
+	 *
+	 * @return true if the current thread holds this lock.
+	 */
+	public boolean isHeldByCurrentThread() {
+		return isReadHeldByCurrentThread() || isWriteHeldByCurrentThread();
+	}
+
+	/**
+	 * Hand the lock, which nobody holds, to the next waiting writer, or to all
+	 * the waiting readers if no writer is waiting.
+	 */
+	private void dispatch() {
+		Lib.assertTrue(writer == null && readers.isEmpty());
+
+		KThread next = writeQueue.nextThread();
+		if (next != null) {
+			waitingWriters.remove(next);
+			stopWaiting(next);
+			writer = next;
+			addHolder(next);
+			next.ready();
+		} else {
+			admitReaders();
+		}
+	}
+
+	/**
+	 * Let all the waiting readers hold the lock.
+	 */
+	private void admitReaders() {
+		while (!waitingReaders.isEmpty()) {
+			KThread next = waitingReaders.removeFirst();
+			stopWaiting(next);
+			readers.add(next);
+			addHolder(next);
+			next.ready();
+		}
+	}
+
+	/**
+	 * Return every thread that is waiting for the lock, including a reader
+	 * waiting to upgrade.
+	 */
+	private LinkedList<KThread> waiters() {
+		LinkedList<KThread> waiters = new LinkedList<KThread>(waitingReaders);
+		waiters.addAll(waitingWriters);
+		if (upgrader != null)
+			waiters.add(upgrader);
+		return waiters;
+	}
+
+	/**
+	 * Give a new holder a thread queue, and make every waiting thread donate
+	 * to it.
+	 */
+	private void addHolder(KThread thread) {
+		if (!transferPriority)
+			return;
+
+		ThreadQueue queue = freeQueues.isEmpty() ? ThreadedKernel.scheduler
+				.newThreadQueue(true, name + ".holder") : freeQueues
+				.removeFirst();
+		queue.acquire(thread);
+
+		for (KThread waiter : waiters())
+			queue.waitForAccess(waiter);
+
+		holderQueues.put(thread, queue);
+	}
+
+	/**
+	 * Take back a departing holder's thread queue, ending the donations made
+	 * to it.
+	 */
+	private void removeHolder(KThread thread) {
+		if (!transferPriority)
+			return;
+
+		ThreadQueue queue = holderQueues.remove(thread);
+		for (KThread waiter : waiters())
+			queue.remove(waiter);
+
+		freeQueues.add(queue);
+	}
+
+	/**
+	 * Make a thread that starts waiting donate to every holder but itself.
+	 */
+	private void startWaiting(KThread thread) {
+		if (!transferPriority)
+			return;
+
+		for (KThread holder : holderQueues.keySet()) {
+			if (holder != thread)
+				holderQueues.get(holder).waitForAccess(thread);
+		}
+	}
+
+	/**
+	 * Make a thread that stops waiting stop donating to the holders.
+	 */
+	private void stopWaiting(KThread thread) {
+		if (!transferPriority)
+			return;
+
+		for (ThreadQueue queue : holderQueues.values())
+			queue.remove(thread);
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final int[] inside = new int[1], maxInside = new int[1];
+
+		// Readers hold the lock together
+		KThread[] readers = new KThread[3];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquireRead();
+					inside[0]++;
+					maxInside[0] = Math.max(maxInside[0], inside[0]);
+					ThreadedKernel.alarm.waitUntil(100);
+					inside[0]--;
+					lock.releaseRead();
+				}
+			}).setName("reader " + i);
+			readers[i].fork();
+		}
+		for (int i = 0; i < readers.length; i++)
+			readers[i].join();
+		System.out.println((maxInside[0] == readers.length ? "[PASS]"
+				: "[FAIL]")
+				+ ": ReadWriteLock readers held the lock together");
+
+		// A waiting writer keeps new readers out
+		final StringBuffer order = new StringBuffer();
+		lock.acquireRead();
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				order.append('w');
+				lock.releaseWrite();
+			}
+		}).setName("writer");
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				order.append('r');
+				lock.releaseRead();
+			}
+		}).setName("late reader");
+		writer.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		reader.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		order.append('0');
+		lock.releaseRead();
+		writer.join();
+		reader.join();
+		System.out.println((order.toString().equals("0wr") ? "[PASS]"
+				: "[FAIL]")
+				+ ": ReadWriteLock writer went ahead of a later reader ("
+				+ order + ")");
+
+		// An upgrade waits for the other readers, and only one may be pending
+		order.setLength(0);
+		final Semaphore holding = new Semaphore(0);
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				holding.V();
+				ThreadedKernel.alarm.waitUntil(100);
+				order.append(lock.upgrade() ? 'u' : 'f');
+				lock.releaseRead();
+			}
+		}).setName("second upgrader");
+		lock.acquireRead();
+		other.fork();
+		holding.P();
+		boolean upgraded = lock.upgrade();
+		order.append(upgraded ? 'U' : 'F');
+		lock.downgrade();
+		lock.releaseRead();
+		other.join();
+		System.out.println((upgraded && order.toString().equals("fU") ? "[PASS]"
+				: "[FAIL]")
+				+ ": ReadWriteLock upgrade (" + order + ")");
+
+		// A downgrade lets waiting readers in
+		lock.acquireWrite();
+		inside[0] = 0;
+		KThread late = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				inside[0]++;
+				lock.releaseRead();
+			}
+		}).setName("downgrade reader");
+		late.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		lock.downgrade();
+		late.join();
+		boolean sharing = inside[0] == 1 && lock.isReadHeldByCurrentThread();
+		lock.releaseRead();
+		System.out.println((sharing ? "[PASS]" : "[FAIL]")
+				+ ": ReadWriteLock downgrade admitted a waiting reader");
+	}
+
+	private String name;
+	private boolean transferPriority;
+
+	/** The thread holding the lock for writing, if any. */
+	private KThread writer = null;
+	/** The threads holding the lock for reading. */
+	private HashSet<KThread> readers = new HashSet<KThread>();
+	/** The reader waiting for the other readers to leave, if any. */
+	private KThread upgrader = null;
+
+	/** Writers waiting for the lock, in the order the scheduler picks them. */
+	private ThreadQueue writeQueue;
+	private LinkedList<KThread> waitingWriters = new LinkedList<KThread>();
+	private LinkedList<KThread> waitingReaders = new LinkedList<KThread>();
+
+	/** The queue each holder owns, when transferring priority. */
+	private HashMap<KThread, ThreadQueue> holderQueues = new HashMap<KThread, ThreadQueue>();
+	/** Holder queues that have no owner and no waiters, for reuse. */
+	private LinkedList<ThreadQueue> freeQueues = new LinkedList<ThreadQueue>();
+}
@@ -12,6 +12,8 @@ public abstract class Scheduler {
 	 * Allocate a new scheduler.
 	 */
 	public Scheduler() {
+		instrumentQueues = Config.getBoolean("Scheduler.instrumentQueues",
+				false);
 	}
 
 	/**
@@ -51,6 +53,31 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate a new named thread queue. This is the same as
+	 * <tt>newThreadQueue(transferPriority)</tt>, except that if
+	 * <tt>Scheduler.instrumentQueues</tt> is set, the queue also records how
+	 * long threads wait on it, how deep it gets, and how often its waiters
+	 * donate priority. Queues that share a name share their statistics, which
+	 * are printed when the kernel terminates.
+	 * 
+	 * @param transferPriority
+	 *            <tt>true</tt> if the thread that has access should receive
+	 *            priority from the threads that are waiting on this queue.
+	 * @param name
+	 *            the name to record statistics under.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority, String name) {
+		ThreadQueue queue = newThreadQueue(transferPriority);
+
+		if (instrumentQueues)
+			queue = new InstrumentedThreadQueue(queue,
+					QueueStats.forName(name), transferPriority, this);
+
+		return queue;
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -157,4 +184,40 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * before the current thread is preempted. Schedulers that account for
+	 * processor time can charge the elapsed ticks to the current thread here.
+	 * The default implementation does nothing.
+	 */
+	public void timerInterrupt() {
+	}
+
+	/**
+	 * Called by <tt>KThread.finish()</tt>, with interrupts disabled, when a
+	 * thread finishes. Schedulers that hold resources on behalf of a thread
+	 * can release them here. The default implementation does nothing.
+	 *
+	 * @param thread
+	 *            the thread that is finishing.
+	 */
+	public void threadFinished(KThread thread) {
+	}
+
+	/**
+	 * Called by <tt>KThread.yield()</tt> and <tt>KThread.sleep()</tt>, with
+	 * interrupts disabled, when the current thread is about to give up the
+	 * processor. Schedulers that account for processor time can charge the
+	 * thread for the time it ran since it was dispatched or last charged. The
+	 * default implementation does nothing.
+	 *
+	 * @param thread
+	 *            the thread that is giving up the processor.
+	 */
+	public void threadStopping(KThread thread) {
+	}
+
+	/** <tt>true</tt> if named thread queues should record statistics. */
+	private boolean instrumentQueues;
 }
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value. A
  * semaphore has only two operations:
@@ -14,6 +16,10 @@ import nachos.machine.*;
  * </ul>
  * 
  * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> move <i>n</i> units at once, for the cost of
+ * a single operation.
+ * 
+ * <p>
  * Note that this API does not allow a thread to read the value of the semaphore
  * directly. Even if you did read the value, the only thing you would know is
  * what the value used to be. You don't know what the value is now, because by
@@ -29,23 +35,131 @@ public class Semaphore {
 	 *            the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, "Semaphore");
+	}
+
+	/**
+	 * Allocate a new named semaphore. The name identifies the semaphore in
+	 * scheduler statistics and contention profiles.
+	 * 
+	 * @param initialValue
+	 *            the initial value of this semaphore.
+	 * @param name
+	 *            the name of this semaphore.
+	 */
+	public Semaphore(int initialValue, String name) {
+		this(initialValue, name, true);
+	}
+
+	/**
+	 * Allocate a new named semaphore, optionally leaving it out of contention
+	 * profiles. <tt>Condition</tt> uses this for the semaphores its waiters
+	 * sleep on, which it profiles itself.
+	 */
+	Semaphore(int initialValue, String name, boolean profiled) {
 		value = initialValue;
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(false, name);
+		if (profiled)
+			profile = LockProfiler.forName("Semaphore", name);
 	}
 
 	/**
 	 * Atomically wait for this semaphore to become non-zero and decrement it.
 	 */
 	public void P() {
+		P(1);
+	}
+
+	/**
+	 * Atomically wait for this semaphore's value to reach <i>n</i> and
+	 * subtract <i>n</i> from it. Waiters are served in order, so a thread
+	 * waiting for many units is not overtaken by later threads waiting for
+	 * fewer.
+	 * 
+	 * @param n
+	 *            the amount to decrement this semaphore by. Must be positive.
+	 */
+	public void P(int n) {
+		Lib.assertTrue(n > 0);
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		if (value == 0) {
-			waitQueue.waitForAccess(KThread.currentThread());
-			KThread.sleep();
+		if (available(n)) {
+			value -= n;
+
+			if (profile != null)
+				profile.acquired(false);
 		} else {
+			KThread thread = KThread.currentThread();
+			long start = Machine.timer().getTime();
+			waitFor(thread, n);
+			KThread.sleep();
+
+			if (profile != null) {
+				profile.acquired(true);
+				profile.waited(thread, Machine.timer().getTime() - start);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * giving up if it is still zero after <i>timeout</i> ticks.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait. If this is not
+	 *            positive, return immediately.
+	 * @return <tt>true</tt> if the semaphore was decremented, or
+	 *         <tt>false</tt> if the wait timed out.
+	 */
+	public boolean tryP(long timeout) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean decremented = true;
+
+		if (available(1)) {
 			value--;
+
+			if (profile != null)
+				profile.acquired(false);
+		} else if (timeout <= 0) {
+			decremented = false;
+		} else {
+			long start = Machine.timer().getTime();
+			final KThread thread = KThread.currentThread();
+			waitFor(thread, 1);
+
+			Alarm.Timeout timeoutEntry = new Alarm.Timeout(thread) {
+				boolean cancelWait() {
+					return stopWaiting(thread);
+				}
+			};
+			ThreadedKernel.alarm.schedule(timeoutEntry, timeout);
+			KThread.sleep();
+
+			// V() handed us the semaphore, unless the timeout fired first
+			ThreadedKernel.alarm.cancel(timeoutEntry);
+			decremented = !timeoutEntry.timedOut();
+
+			if (profile != null) {
+				if (decremented)
+					profile.acquired(true);
+				profile.waited(thread, Machine.timer().getTime() - start);
+			}
 		}
 
 		Machine.interrupt().restore(intStatus);
+		return decremented;
+	}
+
+	/**
+	 * Decrement this semaphore if it is non-zero, without waiting.
+	 * 
+	 * @return <tt>true</tt> if the semaphore was decremented.
+	 */
+	public boolean tryP() {
+		return tryP(0);
 	}
 
 	/**
@@ -53,16 +167,120 @@ public class Semaphore {
 	 * sleeping on this semaphore.
 	 */
 	public void V() {
+		V(1);
+	}
+
+	/**
+	 * Atomically add <i>n</i> to this semaphore and wake up as many sleeping
+	 * threads, in order, as the new value satisfies.
+	 * 
+	 * @param n
+	 *            the amount to increment this semaphore by. Must be positive.
+	 */
+	public void V(int n) {
+		Lib.assertTrue(n > 0);
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		KThread thread = waitQueue.nextThread();
-		if (thread != null) {
-			thread.ready();
+		value += n;
+		grant(null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Like <tt>V()</tt>, but if a thread is sleeping in <tt>P()</tt>, move it
+	 * onto the wait queue of a lock held by the current thread instead of
+	 * readying it, so that it returns from <tt>P()</tt> holding the lock.
+	 * A thread returning from <tt>P()</tt> must therefore check
+	 * <tt>isHeldByCurrentThread()</tt> before acquiring the lock.
+	 * 
+	 * @param lock
+	 *            a lock held by the current thread.
+	 */
+	void handOff(Lock lock) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		value++;
+		grant(lock);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Tests whether <i>n</i> units can be taken without waiting. Must be called
+	 * with interrupts disabled.
+	 */
+	private boolean available(int n) {
+		// while the value is positive, the only possible waiter is the head
+		return head == null && value >= n;
+	}
+
+	/**
+	 * Put a thread on the wait queue, waiting for <i>n</i> units. Must be
+	 * called with interrupts disabled.
+	 */
+	private void waitFor(KThread thread, int n) {
+		if (n > 1)
+			needed.put(thread, n);
+		waitQueue.waitForAccess(thread);
+
+		// the value may already cover part of a batch request
+		grant(null);
+	}
+
+	/**
+	 * Take a thread that gave up waiting off the wait queue. Must be called
+	 * with interrupts disabled.
+	 * 
+	 * @return <tt>true</tt> if the thread was waiting.
+	 */
+	private boolean stopWaiting(KThread thread) {
+		boolean removed;
+		if (head == thread) {
+			head = null;
+			removed = true;
 		} else {
-			value++;
+			removed = waitQueue.remove(thread);
 		}
+		needed.remove(thread);
 
-		Machine.interrupt().restore(intStatus);
+		// the threads behind it may be satisfied now
+		if (removed)
+			grant(null);
+		return removed;
+	}
+
+	/**
+	 * Wake waiters in order for as long as the value satisfies them. A waiter
+	 * that needs more than is available waits at the head, where later
+	 * <tt>V()</tt>s find it first. Must be called with interrupts disabled.
+	 * 
+	 * @param lock
+	 *            a lock held by the current thread to hand the woken threads
+	 *            to, or <tt>null</tt> to ready them.
+	 */
+	private void grant(Lock lock) {
+		while (value > 0) {
+			if (head == null) {
+				head = waitQueue.nextThread();
+				if (head == null)
+					break;
+
+				Integer n = needed.remove(head);
+				headNeeds = (n == null) ? 1 : n;
+			}
+
+			if (headNeeds > value)
+				break;
+
+			value -= headNeeds;
+			if (lock != null)
+				lock.requeue(head);
+			else
+				head.ready();
+			head = null;
+		}
 	}
 
 	private static class PingTest implements Runnable {
@@ -95,9 +313,69 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		// A timed P on a zero semaphore times out no earlier than asked
+		Semaphore empty = new Semaphore(0);
+		long start = Machine.timer().getTime();
+		boolean got = empty.tryP(1000);
+		long waited = Machine.timer().getTime() - start;
+		System.out.println((!got && waited >= 1000 ? "[PASS]" : "[FAIL]")
+				+ ": Semaphore.tryP() timed out after " + waited + " ticks");
+
+		// A timed P that is satisfied early leaves no waiter behind
+		final Semaphore later = new Semaphore(0);
+		new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(500);
+				later.V();
+			}
+		}).setName("tryP waker").fork();
+		got = later.tryP(100000);
+		later.V();
+		System.out.println((got && later.tryP() && !later.tryP() ? "[PASS]"
+				: "[FAIL]")
+				+ ": Semaphore.tryP() woken before its timeout");
+
+		// P(n) waits for enough units, and a later P() does not overtake it
+		final Semaphore batch = new Semaphore(0);
+		final StringBuffer order = new StringBuffer();
+		new KThread(new Runnable() {
+			public void run() {
+				batch.P(3);
+				order.append("3");
+			}
+		}).setName("P(3)").fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		new KThread(new Runnable() {
+			public void run() {
+				batch.P();
+				order.append("1");
+			}
+		}).setName("P(1)").fork();
+		ThreadedKernel.alarm.waitUntil(100);
+
+		batch.V(2);
+		ThreadedKernel.alarm.waitUntil(100);
+		String afterTwo = order.toString();
+		batch.V(2);
+		ThreadedKernel.alarm.waitUntil(100);
+		System.out.println((afterTwo.equals("") && order.length() == 2
+				&& !batch.tryP() ? "[PASS]" : "[FAIL]")
+				+ ": Semaphore.P(3) not overtaken by a later P()");
 	}
 
 	private int value;
-	private ThreadQueue waitQueue = ThreadedKernel.scheduler
-			.newThreadQueue(false);
+	private ThreadQueue waitQueue;
+	/**
+	 * The first waiter, taken off the wait queue because the value does not
+	 * yet cover its request.
+	 */
+	private KThread head = null;
+	/** The number of units <tt>head</tt> is waiting for. */
+	private int headNeeds;
+	/** The number of units each batch waiter needs; absent means one. */
+	private HashMap<KThread, Integer> needed = new HashMap<KThread, Integer>();
+
+	/** Contention profile, if profiling is enabled. */
+	private LockProfiler profile;
 }
@@ -1,10 +1,13 @@
 package nachos.threads;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue. <tt>addAll()</tt> and <tt>drainTo()</tt> move many
+ * objects for one acquisition of the queue's lock.
  */
 public class SynchList<T> {
 	/**
@@ -32,6 +35,27 @@ public class SynchList<T> {
 		lock.release();
 	}
 
+	/**
+	 * Add every object of a collection to the end of the queue, in iteration
+	 * order, waking up as many threads waiting in <tt>removeFirst()</tt> or
+	 * <tt>poll()</tt>.
+	 * 
+	 * @param c
+	 *            the objects to add. None may be <tt>null</tt>.
+	 */
+	public void addAll(Collection<? extends T> c) {
+		if (c.isEmpty())
+			return;
+
+		lock.acquire();
+		for (T t : c) {
+			Lib.assertTrue(t != null);
+			list.add(t);
+		}
+		listEmpty.wake(c.size());
+		lock.release();
+	}
+
 	/**
 	 * Remove an object from the front of the queue, blocking until the queue is
 	 * non-empty if necessary.
@@ -50,6 +74,58 @@ public class SynchList<T> {
 		return t;
 	}
 	
+	/**
+	 * Remove an object from the front of the queue, waiting at most
+	 * <i>timeout</i> ticks for the queue to become non-empty.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait. If this is not
+	 *            positive, return immediately.
+	 * @return the element removed from the front of the queue, or
+	 *         <tt>null</tt> if the queue was still empty after the timeout.
+	 */
+	public T poll(long timeout) {
+		T t = null;
+		long deadline = Machine.timer().getTime() + timeout;
+
+		lock.acquire();
+		while (list.isEmpty()) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+			listEmpty.sleepFor(remaining);
+		}
+		if (!list.isEmpty())
+			t = list.removeFirst();
+		lock.release();
+
+		return t;
+	}
+
+	/**
+	 * Move up to <i>max</i> objects from the front of the queue to the end of
+	 * a collection, without waiting.
+	 * 
+	 * @param c
+	 *            the collection to add the objects to.
+	 * @param max
+	 *            the maximum number of objects to move.
+	 * @return the number of objects moved, which is zero if the queue was
+	 *         empty.
+	 */
+	public int drainTo(Collection<? super T> c, int max) {
+		int n = 0;
+
+		lock.acquire();
+		while (n < max && !list.isEmpty()) {
+			c.add(list.removeFirst());
+			n++;
+		}
+		lock.release();
+
+		return n;
+	}
+
 	/**
 	 * A method to check to see if the underlying list is empty
 	 * @return True if the list is empty
@@ -91,6 +167,38 @@ public class SynchList<T> {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		// A batch added at once is drained in order, in bounded chunks
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int i = 0; i < 5; i++)
+			batch.add(i);
+		ping.addAll(batch);
+
+		ArrayList<Integer> drained = new ArrayList<Integer>();
+		int first = ping.drainTo(drained, 3);
+		int second = ping.drainTo(drained, 3);
+		System.out.println((first == 3 && second == 2 && drained.equals(batch)
+				&& ping.drainTo(drained, 3) == 0 ? "[PASS]" : "[FAIL]")
+				+ ": SynchList.addAll()/drainTo() moved a batch in order");
+
+		// A timed poll times out on an empty queue, and returns an element
+		// added while it waits
+		long start = Machine.timer().getTime();
+		Integer none = ping.poll(1000);
+		long waited = Machine.timer().getTime() - start;
+
+		final SynchList<Integer> later = ping;
+		new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(500);
+				later.add(42);
+			}
+		}).setName("poll adder").fork();
+		Integer got = ping.poll(100000);
+		System.out.println((none == null && waited >= 1000 && got != null
+				&& got == 42 ? "[PASS]" : "[FAIL]")
+				+ ": SynchList.poll() timed out after " + waited
+				+ " ticks, then got " + got);
 	}
 
 	private LinkedList<T> list;
@@ -92,6 +92,18 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Take the specified thread off this queue without giving it access, if it
+	 * is waiting for access. This is used when a thread stops waiting early,
+	 * for example because a timed wait has expired. If the queue transfers
+	 * priority, the thread no longer donates priority through it.
+	 * 
+	 * @param thread
+	 *            the thread to remove.
+	 * @return <tt>true</tt> if the thread was waiting on this queue.
+	 */
+	public abstract boolean remove(KThread thread);
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
@@ -14,8 +14,9 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * Initialize this kernel. Creates a scheduler, the first thread, an alarm,
+	 * and a work queue, and enables interrupts. Creates a file system if
+	 * necessary.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
@@ -36,6 +37,11 @@ public class ThreadedKernel extends Kernel {
 
 		alarm = new Alarm();
 
+		workQueue = new KWorkQueue(Config.getInteger("KWorkQueue.numWorkers",
+				2), "kernel worker");
+
+		CpuUsage.startTop();
+
 		Machine.interrupt().enable();
 	}
 
@@ -56,9 +62,14 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, printing the thread queue statistics, lock
+	 * contention profiles and CPU usage if they were recorded. Never returns.
 	 */
 	public void terminate() {
+		QueueStats.printAll();
+		LockProfiler.printAll();
+		CpuUsage.printAll();
+
 		Machine.halt();
 	}
 
@@ -66,6 +77,8 @@ public class ThreadedKernel extends Kernel {
 	public static Scheduler scheduler = null;
 	/** Globally accessible reference to the alarm. */
 	public static Alarm alarm = null;
+	/** Globally accessible reference to the kernel work queue. */
+	public static KWorkQueue workQueue = null;
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 }
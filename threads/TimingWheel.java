@@ -0,0 +1,309 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A hierarchical timing wheel, keyed by simulated tick. Each of the
+ * <tt>LEVELS</tt> wheels has 64 slots; a slot at level <i>l</i> covers
+ * 64<sup><i>l</i></sup> ticks. An entry is filed at the lowest level whose
+ * range covers its distance from the current time, and is moved down a level
+ * each time the wheel below it wraps around. Each slot holds a doubly linked
+ * list of entries, so any number of entries may share a tick, and adding or
+ * removing an entry takes constant time. Expiring entries takes amortized
+ * constant time per entry plus one step per 64 ticks advanced while level 0
+ * is occupied; bitmaps of occupied slots let <tt>advance()</tt> skip empty
+ * slots and turns.
+ *
+ * <p>
+ * A timing wheel is not synchronized; callers must disable interrupts.
+ */
+class TimingWheel {
+	/**
+	 * Allocate a new timing wheel.
+	 *
+	 * @param time
+	 *            the current time. Entries due at or before this time expire
+	 *            on the first call to <tt>advance()</tt>.
+	 */
+	TimingWheel(long time) {
+		current = time;
+	}
+
+	/**
+	 * An event waiting in a timing wheel. An entry may be in at most one wheel
+	 * at a time, but may be added again after it expires or is removed.
+	 */
+	static abstract class Entry {
+		/**
+		 * Called by <tt>advance()</tt> when this entry is due. The entry has
+		 * already been removed from the wheel.
+		 */
+		abstract void expire();
+
+		/**
+		 * Tests whether this entry is waiting in a wheel.
+		 *
+		 * @return <tt>true</tt> if this entry has been added and has neither
+		 *         expired nor been removed.
+		 */
+		boolean isPending() {
+			return level >= 0;
+		}
+
+		/**
+		 * Get the time this entry is due.
+		 *
+		 * @return the time passed to <tt>add()</tt>.
+		 */
+		long getTime() {
+			return time;
+		}
+
+		private long time;
+		private int level = -1, slot;
+		private Entry prev, next;
+	}
+
+	/**
+	 * Add an entry that expires at the specified time. A time that has already
+	 * passed expires on the next call to <tt>advance()</tt>.
+	 *
+	 * @param entry
+	 *            an entry that is not pending in any wheel.
+	 * @param time
+	 *            the time at which the entry is due.
+	 */
+	void add(Entry entry, long time) {
+		Lib.assertTrue(!entry.isPending());
+
+		entry.time = time;
+		file(entry);
+		size++;
+	}
+
+	/**
+	 * Remove a pending entry without expiring it.
+	 *
+	 * @param entry
+	 *            the entry to remove.
+	 * @return <tt>true</tt> if the entry was pending, or <tt>false</tt> if it
+	 *         had already expired or been removed.
+	 */
+	boolean remove(Entry entry) {
+		if (!entry.isPending())
+			return false;
+
+		unlink(entry);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Advance the wheel to the specified time, expiring every entry due at or
+	 * before it, in order of due time. Entries that share a tick expire in the
+	 * order they were added.
+	 *
+	 * @param time
+	 *            the current time.
+	 */
+	void advance(long time) {
+		while (current < time) {
+			if (size == 0) {
+				current = time;
+				break;
+			}
+
+			// With level 0 empty, nothing happens until the next cascade
+			if (occupied[0] == 0) {
+				long cascade = nextCascade();
+				if (cascade > time) {
+					current = time;
+					break;
+				}
+				current = cascade - 1;
+			}
+
+			long next = current + 1;
+			if ((next & MASK) == 0)
+				cascade(next);
+
+			// Expire the occupied level 0 slots up to the end of this turn
+			long end = Math.min(time, next | MASK);
+			long base = next & ~MASK;
+			int slot = (int) (next & MASK), last = (int) (end & MASK);
+
+			while (slot <= last) {
+				long bits = occupied[0] & (-1L << slot) & (-1L >>> (63 - last));
+				if (bits == 0)
+					break;
+
+				slot = Long.numberOfTrailingZeros(bits);
+				current = base | slot;
+				expireSlot(slot);
+				slot++;
+			}
+
+			current = end;
+		}
+	}
+
+	/**
+	 * Return the earliest due time of any pending entry.
+	 *
+	 * @return the earliest due time, or -1 if the wheel is empty.
+	 */
+	long nextExpiry() {
+		long earliest = -1;
+
+		for (int level = 0; level < LEVELS; level++) {
+			if (occupied[level] == 0)
+				continue;
+
+			// Slots are in time order starting just after the current one, so
+			// only the first occupied slot matters. Entries beyond the range
+			// of the top level are clamped into it, so search all of its slots.
+			long slots = occupied[level];
+			if (level < LEVELS - 1) {
+				int start = (int) (((current >>> (BITS * level)) + 1) & MASK);
+				int slot = (start + Long.numberOfTrailingZeros(Long
+						.rotateRight(slots, start))) & (int) MASK;
+				slots = 1L << slot;
+			}
+
+			for (; slots != 0; slots &= slots - 1) {
+				int slot = Long.numberOfTrailingZeros(slots);
+				for (Entry e = heads[level][slot]; e != null; e = e.next) {
+					if (earliest < 0 || e.time < earliest)
+						earliest = e.time;
+				}
+			}
+		}
+
+		return earliest;
+	}
+
+	/**
+	 * Return the number of pending entries.
+	 *
+	 * @return the number of entries that have been added but have not expired
+	 *         or been removed.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Move the entries of the slots covering the turn starting at
+	 * <i>time</i> down from every level that wraps around at that time.
+	 */
+	private void cascade(long time) {
+		for (int level = 1; level < LEVELS; level++) {
+			int slot = (int) ((time >>> (BITS * level)) & MASK);
+
+			// Detach the whole list first; clamped entries may land back here
+			Entry e = heads[level][slot];
+			heads[level][slot] = tails[level][slot] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (e != null) {
+				Entry next = e.next;
+				file(e);
+				e = next;
+			}
+
+			if (slot != 0)
+				break;
+		}
+	}
+
+	/**
+	 * Return the start of the earliest turn at which an occupied slot above
+	 * level 0 will be cascaded.
+	 */
+	private long nextCascade() {
+		long earliest = Long.MAX_VALUE;
+
+		for (int level = 1; level < LEVELS; level++) {
+			if (occupied[level] == 0)
+				continue;
+
+			long turn = (current >>> (BITS * level)) + 1;
+			long offset = Long.numberOfTrailingZeros(Long.rotateRight(
+					occupied[level], (int) (turn & MASK)));
+			earliest = Math.min(earliest, (turn + offset) << (BITS * level));
+		}
+
+		return earliest;
+	}
+
+	private void expireSlot(int slot) {
+		Entry e;
+		while ((e = heads[0][slot]) != null) {
+			unlink(e);
+			size--;
+			e.expire();
+		}
+	}
+
+	private void file(Entry entry) {
+		long time = Math.max(entry.time, current + 1);
+		long delta = time - current - 1;
+
+		if (delta >= 1L << (BITS * LEVELS)) {
+			delta = (1L << (BITS * LEVELS)) - 1;
+			time = current + 1 + delta;
+		}
+
+		int level = 0;
+		while (delta >= 1L << (BITS * (level + 1)))
+			level++;
+
+		int slot = (int) ((time >>> (BITS * level)) & MASK);
+
+		entry.level = level;
+		entry.slot = slot;
+		entry.next = null;
+		entry.prev = tails[level][slot];
+		if (entry.prev == null)
+			heads[level][slot] = entry;
+		else
+			entry.prev.next = entry;
+		tails[level][slot] = entry;
+		occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(Entry entry) {
+		int level = entry.level, slot = entry.slot;
+
+		if (entry.prev == null)
+			heads[level][slot] = entry.next;
+		else
+			entry.prev.next = entry.next;
+		if (entry.next == null)
+			tails[level][slot] = entry.prev;
+		else
+			entry.next.prev = entry.prev;
+
+		if (heads[level][slot] == null)
+			occupied[level] &= ~(1L << slot);
+
+		entry.prev = entry.next = null;
+		entry.level = -1;
+	}
+
+	/** Number of bits of the due time resolved by each level. */
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final long MASK = SLOTS - 1;
+	/** Number of levels, enough to cover 2<sup>36</sup> ticks. */
+	private static final int LEVELS = 6;
+
+	private Entry[][] heads = new Entry[LEVELS][SLOTS];
+	private Entry[][] tails = new Entry[LEVELS][SLOTS];
+	/** One bit per non-empty slot, for each level. */
+	private long[] occupied = new long[LEVELS];
+
+	/** The last time passed to <tt>advance()</tt>. */
+	private long current;
+	private int size = 0;
+}
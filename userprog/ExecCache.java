@@ -0,0 +1,347 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * A cache of recently executed programs, so that running a program again
+ * neither reopens the executable nor parses its headers. Each cached image
+ * keeps its executable open, and its <tt>Coff</tt> loads pages straight from
+ * it.
+ *
+ * <p>
+ * Images are keyed by file name. An image is dropped when the kernel writes,
+ * truncates or removes its file, and is not used if the file's length has
+ * changed since it was parsed. The least recently used images beyond
+ * <tt>UserKernel.execCacheSize</tt> are dropped as well; an image still in use
+ * by a process is only closed once the last process releases it.
+ *
+ * <p>
+ * An image can also hold a <tt>ProcessTemplate</tt> of the program, which is
+ * discarded along with the image.
+ *
+ * <p>
+ * Like <tt>KWorkQueue</tt>, the cache synchronizes by disabling interrupts,
+ * so invalidating a file never waits for an executable being opened.
+ */
+public class ExecCache {
+	/**
+	 * Allocate a new exec cache.
+	 *
+	 * @param capacity
+	 *            the number of unused images to keep. If zero, images are
+	 *            closed as soon as no process is using them.
+	 */
+	public ExecCache(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * A parsed executable, which may be shared by several processes.
+	 */
+	public static class Image {
+		private Image(String name, OpenFile file, Coff coff, String identity) {
+			this.name = name;
+			this.file = file;
+			this.coff = coff;
+			this.length = file.length();
+			this.identity = identity;
+		}
+
+		/**
+		 * Return the loader for this image. Its sections load pages from the
+		 * executable until the image is closed.
+		 *
+		 * @return the loader for this image.
+		 */
+		public Coff getCoff() {
+			return coff;
+		}
+
+		/**
+		 * Return a string identifying the contents of this image. Images
+		 * parsed from the same version of a file have the same identity, even
+		 * if the file was parsed again after its image left the cache, while
+		 * a file that has changed gets a new identity.
+		 *
+		 * @return the identity of this image.
+		 */
+		public String getIdentity() {
+			return identity;
+		}
+
+		/**
+		 * Return the template processes running this image are started from.
+		 *
+		 * @return the template, or <tt>null</tt> if none has been attached.
+		 */
+		public ProcessTemplate getTemplate() {
+			return template;
+		}
+
+		private String name;
+		private OpenFile file;
+		private Coff coff;
+		private int length;
+		private String identity;
+		private ProcessTemplate template = null;
+		/** The number of processes using this image. */
+		private int references = 0;
+		/** True while this image can be found in the cache. */
+		private boolean cached = false;
+	}
+
+	/**
+	 * Return the image of the named executable, opening and parsing it if it
+	 * is not cached. The image must be released with <tt>release()</tt>.
+	 *
+	 * @param name
+	 *            the name of the executable.
+	 * @return the image, or <tt>null</tt> if the file could not be opened or
+	 *         is not a valid executable.
+	 */
+	public Image acquire(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Image image = images.get(name);
+		if (image != null && image.file.length() != image.length) {
+			Lib.debug(dbgExec, "ExecCache: " + name + " changed length");
+			drop(image);
+			image = null;
+		}
+		if (image != null) {
+			image.references++;
+			hits++;
+		}
+		int startVersion = getVersion(name);
+
+		Machine.interrupt().restore(intStatus);
+
+		discardTemplates();
+
+		if (image != null)
+			return image;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
+			Lib.debug(dbgExec, "\topen failed");
+			return null;
+		}
+
+		Coff coff;
+		try {
+			coff = new Coff(file);
+		} catch (EOFException e) {
+			file.close();
+			Lib.debug(dbgExec, "\tcoff load failed");
+			return null;
+		}
+
+		intStatus = Machine.interrupt().disable();
+
+		// An image of a file modified while it was parsed may match neither
+		// version, so it gets an identity of its own
+		boolean unchanged = getVersion(name) == startVersion;
+		String identity = name + "#" + startVersion;
+		if (!unchanged)
+			identity += "/" + nextSerial++;
+
+		image = new Image(name, file, coff, identity);
+		image.references = 1;
+		misses++;
+
+		// Only cache the image if its file was not modified while it was
+		// parsed, and no other process cached the same file meanwhile
+		if (capacity > 0 && unchanged && !images.containsKey(name)) {
+			image.cached = true;
+			images.put(name, image);
+			trim();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		discardTemplates();
+
+		return image;
+	}
+
+	/**
+	 * Add a reference to an image already acquired, for a process that shares
+	 * it with the process that acquired it.
+	 *
+	 * @param image
+	 *            the image.
+	 * @return <i>image</i>.
+	 */
+	public Image retain(Image image) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(image.references > 0);
+		image.references++;
+
+		Machine.interrupt().restore(intStatus);
+		return image;
+	}
+
+	/**
+	 * Release an image returned by <tt>acquire()</tt> or <tt>retain()</tt>.
+	 * The image must not be used once released.
+	 *
+	 * @param image
+	 *            the image.
+	 */
+	public void release(Image image) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(image.references > 0);
+		image.references--;
+
+		if (!image.cached)
+			closeIfUnused(image);
+		else
+			trim();
+
+		Machine.interrupt().restore(intStatus);
+
+		discardTemplates();
+	}
+
+	/**
+	 * Attach a template to an image, unless another process attached one
+	 * first. The template is discarded when the image is closed.
+	 *
+	 * @param image
+	 *            an image acquired by the caller.
+	 * @param template
+	 *            the template of the program in <i>image</i>.
+	 * @return <tt>true</tt> if the template was attached, or <tt>false</tt>
+	 *         if the image already had one.
+	 */
+	public boolean attachTemplate(Image image, ProcessTemplate template) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(image.references > 0);
+		boolean attached = image.template == null;
+		if (attached)
+			image.template = template;
+
+		Machine.interrupt().restore(intStatus);
+		return attached;
+	}
+
+	/**
+	 * Drop the cached image of a file, because the file is being modified.
+	 * Processes already running the image keep it.
+	 *
+	 * @param name
+	 *            the name of the file.
+	 */
+	public void invalidate(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		versions.put(name, getVersion(name) + 1);
+
+		Image image = images.get(name);
+		if (image != null)
+			drop(image);
+
+		Machine.interrupt().restore(intStatus);
+
+		discardTemplates();
+	}
+
+	/**
+	 * Print how many executables were found in the cache, if exec debugging
+	 * is enabled.
+	 */
+	public void print() {
+		Lib.debug(dbgExec, "ExecCache: hits " + hits + ", misses " + misses);
+	}
+
+	/**
+	 * Drop the least recently used images that no process is using until no
+	 * more than <tt>capacity</tt> are unused.
+	 */
+	private void trim() {
+		int unused = 0;
+		for (Image image : images.values())
+			if (image.references == 0)
+				unused++;
+
+		Iterator<Image> i = images.values().iterator();
+		while (unused > capacity && i.hasNext()) {
+			Image image = i.next();
+			if (image.references == 0) {
+				i.remove();
+				image.cached = false;
+				closeIfUnused(image);
+				unused--;
+			}
+		}
+	}
+
+	/**
+	 * Return the number of times the named file has been modified. Must be
+	 * called with interrupts disabled.
+	 */
+	private int getVersion(String name) {
+		Integer version = versions.get(name);
+		return version == null ? 0 : version;
+	}
+
+	private void drop(Image image) {
+		images.remove(image.name);
+		image.cached = false;
+		closeIfUnused(image);
+	}
+
+	private void closeIfUnused(Image image) {
+		if (image.references == 0) {
+			image.coff.close();
+
+			// Templates may free memory, so they are discarded later with
+			// interrupts enabled
+			if (image.template != null) {
+				discarded.add(image.template);
+				image.template = null;
+			}
+		}
+	}
+
+	/**
+	 * Discard the templates of the images closed so far. Must be called with
+	 * interrupts enabled.
+	 */
+	private void discardTemplates() {
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+			ProcessTemplate template = discarded.poll();
+			Machine.interrupt().restore(intStatus);
+
+			if (template == null)
+				return;
+			template.discard();
+		}
+	}
+
+	private int capacity;
+	/** The cached images, least recently used first. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+	/** Templates of closed images, waiting to be discarded. */
+	private LinkedList<ProcessTemplate> discarded = new LinkedList<ProcessTemplate>();
+	/** The number of times each file has been modified, if it has been. */
+	private HashMap<String, Integer> versions = new HashMap<String, Integer>();
+	private int nextSerial = 0;
+	private int hits = 0, misses = 0;
+
+	private static final char dbgExec = 'a';
+}
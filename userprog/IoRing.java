@@ -0,0 +1,283 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A submission and completion ring shared between a user process and the
+ * kernel, registered with <tt>io_setup()</tt>. The process queues reads and
+ * writes in the submission ring and submits them with <tt>io_enter()</tt>,
+ * which returns without waiting for them. Kernel I/O workers carry them out
+ * and post their results to the completion ring, so one process can have
+ * many operations in flight at once.
+ *
+ * <p>
+ * Both rings live in the process's memory, described by a
+ * <tt>struct io_ring</tt>:
+ *
+ * <pre>
+ * struct io_ring {
+ *     int sq_head;             // advanced by the kernel
+ *     int sq_tail;             // advanced by the process
+ *     int cq_head;             // advanced by the process
+ *     int cq_tail;             // advanced by the kernel
+ *     struct io_sqe *sqes;
+ *     struct io_cqe *cqes;
+ * };
+ * struct io_sqe { int opcode; int fd; void *buf; int count; int user_data; };
+ * struct io_cqe { int user_data; int result; };
+ * </pre>
+ *
+ * The heads and tails count entries from 0 and are never wrapped; entry
+ * <i>i</i> of a ring is at index <i>i</i> modulo its size. Operations on
+ * the same file run in the order they were submitted, and operations on
+ * different files may run at once.
+ *
+ * <p>
+ * Operations on files run on the kernel's shared I/O workers. Operations on
+ * streams such as pipes and the console may wait indefinitely, so they run on
+ * a kernel thread of their own for each stream instead, and never tie up the
+ * shared workers.
+ */
+class IoRing {
+	/**
+	 * Register a ring. The caller must have checked that the ring's header
+	 * is in valid memory.
+	 *
+	 * @param process
+	 *            the process that owns the ring.
+	 * @param ringPtr
+	 *            the address of the <tt>struct io_ring</tt>.
+	 * @param sqesPtr
+	 *            the address of the submission entries.
+	 * @param cqesPtr
+	 *            the address of the completion entries.
+	 * @param entries
+	 *            the number of entries in each ring.
+	 */
+	IoRing(UserProcess process, int ringPtr, int sqesPtr, int cqesPtr,
+			int entries) {
+		this.process = process;
+		this.ringPtr = ringPtr;
+		this.sqesPtr = sqesPtr;
+		this.cqesPtr = cqesPtr;
+		this.entries = entries;
+
+		// Both rings start empty
+		process.writeVirtualMemory(ringPtr, new byte[sqesOffset]);
+	}
+
+	/**
+	 * Submit up to <i>toSubmit</i> queued operations, then wait until at
+	 * least <i>minComplete</i> completions are waiting to be reaped, or
+	 * nothing more is in flight. Fewer operations are submitted if the
+	 * completion ring could not hold their results.
+	 *
+	 * @param toSubmit
+	 *            the most operations to submit.
+	 * @param minComplete
+	 *            the number of completions to wait for.
+	 * @return the number of operations submitted, or -1 if a submission
+	 *         names a buffer outside the process's memory.
+	 */
+	int enter(int toSubmit, int minComplete) {
+		byte[] word = new byte[4];
+		byte[] sqe = new byte[sqeSize];
+
+		lock.acquire();
+
+		int sqTail = readWord(sqTailOffset, word);
+		int cqHead = readWord(cqHeadOffset, word);
+
+		// The completion ring must have room for every operation in flight
+		int room = entries - inFlight - (cqTail - cqHead);
+		int count = Math.max(0, Math.min(Math.min(toSubmit, sqTail - sqHead), room));
+
+		int submitted = 0;
+		for (; submitted < count; submitted++) {
+			process.readVirtualMemory(sqesPtr + (sqHead % entries) * sqeSize, sqe);
+			int opcode = Lib.bytesToInt(sqe, 0), fileDesc = Lib.bytesToInt(sqe, 4);
+			int bufferPtr = Lib.bytesToInt(sqe, 8), size = Lib.bytesToInt(sqe, 12);
+			int userData = Lib.bytesToInt(sqe, 16);
+
+			// Like read() and write(), a bad buffer is fatal
+			if (size > 0 && !process.validAddress(bufferPtr)) {
+				writeWord(sqHeadOffset, sqHead);
+				lock.release();
+				return -1;
+			}
+			sqHead++;
+
+			OpenFile file = process.fileForTransfer(fileDesc);
+			if (file == null || size < 0 || (opcode != opRead && opcode != opWrite)) {
+				complete(userData, -1);
+				continue;
+			}
+
+			inFlight++;
+			Operation operation = new Operation(opcode, file, bufferPtr, size,
+					userData);
+			if (file.length() < 0)
+				submitStream(operation);
+			else
+				UserKernel.ioQueue.submit(file, operation);
+		}
+		writeWord(sqHeadOffset, sqHead);
+
+		while (cqTail - cqHead < minComplete && inFlight > 0)
+			completed.sleep();
+
+		lock.release();
+
+		return submitted;
+	}
+
+	/**
+	 * Make every operation that has not started yet fail instead of running.
+	 * Called when the process exits.
+	 */
+	void cancel() {
+		lock.acquire();
+		cancelled = true;
+		lock.release();
+	}
+
+	/**
+	 * Wait for every operation in flight to complete. Called when the process
+	 * exits, after <tt>cancel()</tt>, before its files and memory are
+	 * released.
+	 */
+	void drain() {
+		lock.acquire();
+		while (inFlight > 0)
+			completed.sleep();
+		lock.release();
+	}
+
+	/**
+	 * Run an operation on a stream after the operations already submitted on
+	 * the same stream, forking a thread to run them if there is none. Must be
+	 * called with the lock held.
+	 */
+	private void submitStream(final Operation operation) {
+		LinkedList<Operation> waiting = streams.get(operation.file);
+		if (waiting != null) {
+			waiting.add(operation);
+			return;
+		}
+
+		streams.put(operation.file, new LinkedList<Operation>());
+		new KThread(new Runnable() {
+			public void run() {
+				runStream(operation);
+			}
+		}).setName("I/O stream").fork();
+	}
+
+	/**
+	 * The body of a stream's thread: run its operations in order until none
+	 * are left.
+	 */
+	private void runStream(Operation operation) {
+		while (operation != null) {
+			operation.run();
+
+			lock.acquire();
+			LinkedList<Operation> waiting = streams.get(operation.file);
+			if (waiting.isEmpty()) {
+				streams.remove(operation.file);
+				operation = null;
+			} else {
+				operation = waiting.removeFirst();
+			}
+			lock.release();
+		}
+	}
+
+	/**
+	 * Post a completion. Must be called with the lock held.
+	 */
+	private void complete(int userData, int result) {
+		byte[] cqe = new byte[cqeSize];
+		Lib.bytesFromInt(cqe, 0, userData);
+		Lib.bytesFromInt(cqe, 4, result);
+		process.writeVirtualMemory(cqesPtr + (cqTail % entries) * cqeSize, cqe);
+
+		cqTail++;
+		writeWord(cqTailOffset, cqTail);
+	}
+
+	private int readWord(int offset, byte[] word) {
+		process.readVirtualMemory(ringPtr + offset, word);
+		return Lib.bytesToInt(word, 0);
+	}
+
+	private void writeWord(int offset, int value) {
+		process.writeVirtualMemory(ringPtr + offset, Lib.bytesFromInt(value));
+	}
+
+	/** A submitted operation, run by an I/O worker. */
+	private class Operation implements Runnable {
+		Operation(int opcode, OpenFile file, int bufferPtr, int size,
+				int userData) {
+			this.opcode = opcode;
+			this.file = file;
+			this.bufferPtr = bufferPtr;
+			this.size = size;
+			this.userData = userData;
+		}
+
+		public void run() {
+			lock.acquire();
+			boolean skip = cancelled;
+			lock.release();
+
+			int result;
+			if (skip)
+				result = -1;
+			else if (opcode == opRead)
+				result = process.readFile(file, bufferPtr, size);
+			else
+				result = process.writeFile(file, bufferPtr, size);
+
+			lock.acquire();
+			complete(userData, result);
+			inFlight--;
+			completed.wakeAll();
+			lock.release();
+		}
+
+		private int opcode, bufferPtr, size, userData;
+		private OpenFile file;
+	}
+
+	/** The operation codes of a <tt>struct io_sqe</tt>. */
+	static final int opRead = 0, opWrite = 1;
+
+	/** The sizes in bytes of the ring structures. */
+	static final int headerSize = 24, sqeSize = 20, cqeSize = 8;
+	/** The offsets of the fields of a <tt>struct io_ring</tt>. */
+	static final int sqHeadOffset = 0, sqTailOffset = 4, cqHeadOffset = 8,
+			cqTailOffset = 12, sqesOffset = 16, cqesOffset = 20;
+
+	private UserProcess process;
+	private int ringPtr, sqesPtr, cqesPtr, entries;
+
+	/** The kernel's copies of the indices it advances. */
+	private int sqHead = 0, cqTail = 0;
+	/** The number of operations submitted but not completed. */
+	private int inFlight = 0;
+	/** True once the process is exiting. */
+	private boolean cancelled = false;
+	/**
+	 * The operations waiting behind the one running on each stream that has
+	 * a thread.
+	 */
+	private HashMap<OpenFile, LinkedList<Operation>> streams = new HashMap<OpenFile, LinkedList<Operation>>();
+
+	private Lock lock = new Lock("IoRing.lock");
+	private Condition completed = new Condition(lock, "IoRing.completed");
+}
@@ -0,0 +1,167 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way stream between processes, held in a bounded ring buffer in the
+ * kernel. Like the console, a pipe is accessed through <tt>OpenFile</tt>s: a
+ * read end and a write end, each of which is closed once.
+ *
+ * <p>
+ * Reads and writes never wait: a read takes as much as the pipe holds, and a
+ * write adds as much as fits, so either may transfer less than was asked
+ * for, even nothing. A read returns 0 once the pipe is empty and the write
+ * end has been closed, and a write returns -1 once the read end has been
+ * closed. Callers wait for data or room first with <tt>awaitReadable()</tt>
+ * and <tt>awaitWritable()</tt>, so that they hold nothing, such as a pinned
+ * page, while they wait.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new pipe.
+	 *
+	 * @param capacity
+	 *            the number of bytes the pipe can hold.
+	 */
+	public Pipe(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Return the read end of this pipe. Must be called only once.
+	 *
+	 * @return a file that reads this pipe.
+	 */
+	public OpenFile openForReading() {
+		return new ReadEnd();
+	}
+
+	/**
+	 * Return the write end of this pipe. Must be called only once.
+	 *
+	 * @return a file that writes this pipe.
+	 */
+	public OpenFile openForWriting() {
+		return new WriteEnd();
+	}
+
+	/**
+	 * The read end of a pipe.
+	 */
+	public class ReadEnd extends OpenFile {
+		private ReadEnd() {
+			super(null, "Pipe");
+		}
+
+		/**
+		 * Wait until the pipe holds data, or no more will be written to it.
+		 *
+		 * @return <tt>true</tt> if the pipe holds data, or <tt>false</tt> if
+		 *         it is empty and the write end or this end has been closed.
+		 */
+		public boolean awaitReadable() {
+			lock.acquire();
+			while (count == 0 && writerOpen && readerOpen)
+				readable.sleep();
+			boolean ready = count > 0 && readerOpen;
+			lock.release();
+			return ready;
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			lock.acquire();
+			if (!readerOpen) {
+				lock.release();
+				return -1;
+			}
+
+			int bytesRead = 0;
+			while (bytesRead < length && count > 0) {
+				int amount = Math.min(Math.min(length - bytesRead, count),
+						buffer.length - head);
+				System.arraycopy(buffer, head, buf, offset + bytesRead, amount);
+				head = (head + amount) % buffer.length;
+				count -= amount;
+				bytesRead += amount;
+			}
+			if (bytesRead > 0)
+				writable.wakeAll();
+
+			lock.release();
+			return bytesRead;
+		}
+
+		public void close() {
+			lock.acquire();
+			readerOpen = false;
+			readable.wakeAll();
+			writable.wakeAll();
+			lock.release();
+		}
+	}
+
+	/**
+	 * The write end of a pipe.
+	 */
+	public class WriteEnd extends OpenFile {
+		private WriteEnd() {
+			super(null, "Pipe");
+		}
+
+		/**
+		 * Wait until the pipe has room, or nothing more will be read from it.
+		 */
+		public void awaitWritable() {
+			lock.acquire();
+			while (count == buffer.length && readerOpen && writerOpen)
+				writable.sleep();
+			lock.release();
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			lock.acquire();
+
+			// Nobody will ever read what is written
+			if (!writerOpen || !readerOpen) {
+				lock.release();
+				return -1;
+			}
+
+			int bytesWritten = 0;
+			while (bytesWritten < length && count < buffer.length) {
+				// Copy as much as fits before the buffer wraps
+				int tail = (head + count) % buffer.length;
+				int amount = Math.min(Math.min(length - bytesWritten,
+						buffer.length - count), buffer.length - tail);
+				System.arraycopy(buf, offset + bytesWritten, buffer, tail, amount);
+				count += amount;
+				bytesWritten += amount;
+			}
+			if (bytesWritten > 0)
+				readable.wakeAll();
+
+			lock.release();
+			return bytesWritten;
+		}
+
+		public void close() {
+			lock.acquire();
+			writerOpen = false;
+			readable.wakeAll();
+			writable.wakeAll();
+			lock.release();
+		}
+	}
+
+	private byte[] buffer;
+	/** The position of the oldest byte in the buffer, and how many there are. */
+	private int head = 0, count = 0;
+	private boolean readerOpen = true, writerOpen = true;
+
+	private Lock lock = new Lock("Pipe.lock");
+	private Condition readable = new Condition(lock, "Pipe.readable");
+	private Condition writable = new Condition(lock, "Pipe.writable");
+}
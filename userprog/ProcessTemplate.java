@@ -0,0 +1,18 @@
+package nachos.userprog;
+
+/**
+ * The initialized memory of a program, from which processes running the
+ * program are started instead of loading its sections from the executable.
+ * A template is made by the first process to load an executable, belongs to
+ * the executable's <tt>ExecCache</tt> image, and is discarded when the image
+ * is closed.
+ *
+ * @see nachos.userprog.ExecCache#attachTemplate
+ */
+public abstract class ProcessTemplate {
+	/**
+	 * Free the memory held by this template. Called once, when no process can
+	 * be started from it any more.
+	 */
+	public abstract void discard();
+}
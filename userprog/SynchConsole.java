@@ -104,10 +104,10 @@ public class SynchConsole {
 	private boolean charAvailable = false;
 
 	private SerialConsole console;
-	private Lock readLock = new Lock();
-	private Lock writeLock = new Lock();
-	private Semaphore readWait = new Semaphore(0);
-	private Semaphore writeWait = new Semaphore(0);
+	private Lock readLock = new Lock("SynchConsole.readLock");
+	private Lock writeLock = new Lock("SynchConsole.writeLock");
+	private Semaphore readWait = new Semaphore(0, "SynchConsole.readWait");
+	private Semaphore writeWait = new Semaphore(0, "SynchConsole.writeWait");
 
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
@@ -25,6 +25,11 @@ public class UserKernel extends ThreadedKernel {
 
 		console = new SynchConsole(Machine.console());
 
+		execCache = new ExecCache(Config.getInteger("UserKernel.execCacheSize", 4));
+		processTemplates = Config.getBoolean("UserKernel.processTemplates", true);
+		ioQueue = new KWorkQueue(Config.getInteger("UserKernel.ioWorkers", 4),
+				"I/O worker");
+
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -34,7 +39,7 @@ public class UserKernel extends ThreadedKernel {
 		for (int currentPageIndex = 0; currentPageIndex < Machine.processor().getNumPhysPages(); currentPageIndex++)
 			freePages.add(new TranslationEntry(0, currentPageIndex, false, false, false, false));
 
-		freePagesLock = new Lock();
+		freePagesLock = new Lock("UserKernel.freePagesLock");
 	}
 	
 	/**
@@ -133,16 +138,70 @@ public class UserKernel extends ThreadedKernel {
 		freePagesLock.release();
 	}
 
+	/**
+	 * Make a template of a process whose sections have just been loaded, by
+	 * copying the pages holding them.
+	 * 
+	 * @param pageTable
+	 *            the process's page table.
+	 * @param sectionPages
+	 *            the number of pages, starting at page 0, holding sections.
+	 * @return the new template.
+	 */
+	ProcessTemplate createTemplate(TranslationEntry[] pageTable, int sectionPages) {
+		byte[] memory = Machine.processor().getMemory();
+		byte[] contents = new byte[sectionPages * Processor.pageSize];
+
+		for (int vpn = 0; vpn < sectionPages; vpn++)
+			System.arraycopy(memory, pageTable[vpn].ppn * Processor.pageSize,
+					contents, vpn * Processor.pageSize, Processor.pageSize);
+
+		return new MemoryTemplate(contents);
+	}
+
+	/**
+	 * Initialize the sections of a new process by copying them from a template
+	 * made by <tt>createTemplate()</tt>.
+	 * 
+	 * @param template
+	 *            the template.
+	 * @param pageTable
+	 *            the new process's page table.
+	 */
+	void loadTemplate(ProcessTemplate template, TranslationEntry[] pageTable) {
+		byte[] memory = Machine.processor().getMemory();
+		byte[] contents = ((MemoryTemplate) template).contents;
+
+		for (int vpn = 0; vpn * Processor.pageSize < contents.length; vpn++)
+			System.arraycopy(contents, vpn * Processor.pageSize, memory,
+					pageTable[vpn].ppn * Processor.pageSize, Processor.pageSize);
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (execCache != null)
+			execCache.print();
+
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible reference to the cache of parsed executables. */
+	public static ExecCache execCache;
+
+	/**
+	 * True if processes are started from templates of their executables,
+	 * rather than loading the executable's sections each time.
+	 */
+	public static boolean processTemplates;
+
+	/** The workers that carry out asynchronous I/O for user processes. */
+	public static KWorkQueue ioQueue;
+
 	/**
 	 * A set of free pages in this kernel
 	 */
@@ -153,6 +212,19 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	private Lock freePagesLock;
 	
+	/** A template holding a copy of a program's sections. */
+	private static class MemoryTemplate extends ProcessTemplate {
+		MemoryTemplate(byte[] contents) {
+			this.contents = contents;
+		}
+
+		public void discard() {
+		}
+
+		/** The contents of the pages holding the sections, in order. */
+		private byte[] contents;
+	}
+
 	static class InadequatePagesException extends Exception {
 		/**
 		 * Something to make Eclipse stop complaining. 
@@ -4,10 +4,7 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.UserKernel.InadequatePagesException;
 
-import java.io.EOFException;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -26,8 +23,8 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
+		PID = allocatePID();
 		sharedStateLock.acquire();
-		PID = nextPID++;
 		runningProcesses++;
 		sharedStateLock.release();
 
@@ -38,7 +35,20 @@ public class UserProcess {
 		FileRef.referenceFile(fileTable[1].getName());
 
 		// Exit/Join syncronization
-		waitingToJoin = new Condition(joinLock);
+		waitingToJoin = new Condition(joinLock, "UserProcess.waitingToJoin");
+	}
+
+	/**
+	 * Allocate a process ID that has not been used before.
+	 * 
+	 * @return the new process ID.
+	 */
+	protected static int allocatePID() {
+		sharedStateLock.acquire();
+		int pid = nextPID++;
+		sharedStateLock.release();
+
+		return pid;
 	}
 
 	/**
@@ -65,7 +75,8 @@ public class UserProcess {
 	public boolean execute(String name, String[] args) {
 		if (!load(name, args))
 			return false;
-		new UThread(this).setName(name).fork();
+		new UThread(this).setName(name).setCpuAccount(
+				CpuUsage.newAccount("process " + PID + " " + name)).fork();
 
 		return true;
 	}
@@ -95,6 +106,35 @@ public class UserProcess {
 		return vpn < numPages && vpn >= 0;
 	}
 
+	/**
+	 * Return the translation of a virtual page, so that the kernel can access
+	 * the page directly in physical memory, or <tt>null</tt> if the page is not
+	 * mapped. Every translation returned must be passed to
+	 * <tt>releasePage()</tt> once the access is finished, and the page must
+	 * not be accessed after that.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @param write
+	 *            <tt>true</tt> if the kernel is going to write to the page.
+	 * @return the page's translation, or <tt>null</tt> if it is not mapped.
+	 */
+	protected TranslationEntry translatePage(int vpn, boolean write) {
+		if (vpn < 0 || vpn >= numPages || !pageTable[vpn].valid)
+			return null;
+
+		return pageTable[vpn];
+	}
+
+	/**
+	 * Finish accessing a page returned by <tt>translatePage()</tt>.
+	 * 
+	 * @param entry
+	 *            the page's translation.
+	 */
+	protected void releasePage(TranslationEntry entry) {
+	}
+
 	/**
 	 * Read a null-terminated string from this process's virtual memory. Read at
 	 * most <tt>maxLength + 1</tt> bytes from the specified address, search for
@@ -113,13 +153,44 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
-
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+		if (!validAddress(vaddr))
+			return null;
+
+		byte[] memory = Machine.processor().getMemory();
+
+		// Scan for the terminator a page at a time, without copying
+		int length = 0;
+		while (length <= maxLength) {
+			int pageOffset = Processor.offsetFromAddress(vaddr + length);
+			int amount = Math.min(maxLength + 1 - length, pageSize - pageOffset);
+
+			TranslationEntry entry = translatePage(Processor.pageFromAddress(vaddr
+					+ length), false);
+			if (entry == null)
+				return null;
+
+			int paddr = entry.ppn * pageSize + pageOffset;
+			for (int i = 0; i < amount; i++) {
+				if (memory[paddr + i] == 0) {
+					entry.used = true;
+					String s = null;
+					// A string within one page can be built straight from memory
+					if (length == 0)
+						s = new String(memory, paddr, i);
+					releasePage(entry);
+
+					if (s == null) {
+						byte[] bytes = new byte[length + i];
+						if (readVirtualMemory(vaddr, bytes) == bytes.length)
+							s = new String(bytes);
+					}
+					return s;
+				}
+			}
+			entry.used = true;
+			releasePage(entry);
 
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			length += amount;
 		}
 
 		return null;
@@ -159,25 +230,32 @@ public class UserProcess {
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length && memoryAccessLock != null);
-		if (!validAddress(vaddr)) {
+		if (!validAddress(vaddr))
 			return 0;
-		} else {
-			Collection<MemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.READ);
-			
-			int bytesRead = 0, temp;
-			
-			memoryAccessLock.acquire();
-			for (MemoryAccess ma : memoryAccesses) {
-				temp = ma.executeAccess();
-				
-				if (temp == 0)
-					break;
-				else
-					bytesRead += temp;
-			}
-			memoryAccessLock.release();
-			return bytesRead;
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int bytesRead = 0;
+		memoryAccessLock.acquire();
+		while (bytesRead < length) {
+			int pageOffset = Processor.offsetFromAddress(vaddr + bytesRead);
+			int amount = Math.min(length - bytesRead, pageSize - pageOffset);
+
+			TranslationEntry entry = translatePage(Processor.pageFromAddress(vaddr
+					+ bytesRead), false);
+			if (entry == null)
+				break;
+
+			System.arraycopy(memory, entry.ppn * pageSize + pageOffset, data,
+					offset + bytesRead, amount);
+			entry.used = true;
+			releasePage(entry);
+
+			bytesRead += amount;
 		}
+		memoryAccessLock.release();
+
+		return bytesRead;
 	}
 
 	/**
@@ -214,132 +292,37 @@ public class UserProcess {
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length && memoryAccessLock != null);
-		if (!validAddress(vaddr)) {
+		if (!validAddress(vaddr))
 			return 0;
-		} else {
-			Collection<MemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.WRITE);
-			
-			int bytesWritten = 0, temp;
-			memoryAccessLock.acquire();
-			for (MemoryAccess ma : memoryAccesses) {
-				temp = ma.executeAccess();
-				if (temp == 0)
-					break;
-				else
-					bytesWritten += temp;
-			}
-			memoryAccessLock.release();
-			
-			return bytesWritten;
-		}
-	}
-	
-	/**
-	 * Generates a set of <tt>MemoryAccess</tt> instances corresponding to the desired action.
-	 * @param vaddr
-	 * @param data
-	 * @param offset
-	 * @param length
-	 * @param accessType
-	 * @author Sam Whitlock (cs162-ap)
-	 * @return A collection of <tt>MemoryAccess</tt> instances corresponding to the desired action.
-	 */
-	private Collection<MemoryAccess> createMemoryAccesses(int vaddr, byte[] data, int offset, int length, AccessType accessType) {
-		LinkedList<MemoryAccess> returnList = new LinkedList<MemoryAccess>();
-		
-		while (length > 0) {
-			int vpn = Processor.pageFromAddress(vaddr);
-			
-			int potentialPageAccess = Processor.pageSize - Processor.offsetFromAddress(vaddr);
-			int accessSize = length < potentialPageAccess ? length : potentialPageAccess;
-			
-			returnList.add(new MemoryAccess(accessType, data, vpn, offset, Processor.offsetFromAddress(vaddr), accessSize));
-			length -= accessSize;
-			vaddr += accessSize;
-			offset += accessSize;
-		}
-		
-		return returnList;
-	}
 
-	/**
-	 * An inner class to represent a memory access.
-	 * @author Sam Whitlock (cs162-ap)
-	 */
-	protected class MemoryAccess {
-		protected MemoryAccess(AccessType at, byte[] d, int _vpn, int dStart, int pStart, int len) {
-			accessType = at;
-			data = d;
-			vpn = _vpn;
-			dataStart = dStart;
-			pageStart = pStart;
-			length = len;
-		}
-		
-		/**
-		 * Execute the requested memory access.
-		 * @return The number of bytes successfully written (or 0 if it fails).
-		 */
-		public int executeAccess() {
-			if (translationEntry == null)
-				translationEntry = pageTable[vpn];
-			if (translationEntry.valid) {
-				if (accessType == AccessType.READ) {//Do a read
-					System.arraycopy(Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
-					translationEntry.used = true;
-					return length;
-				} else if (!translationEntry.readOnly && accessType == AccessType.WRITE) {//FIXME: If this last part necessary?
-					System.arraycopy(data, dataStart, Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), length);
-					translationEntry.used = translationEntry.dirty = true;
-					return length;
-				}
+		byte[] memory = Machine.processor().getMemory();
+
+		int bytesWritten = 0;
+		memoryAccessLock.acquire();
+		while (bytesWritten < length) {
+			int pageOffset = Processor.offsetFromAddress(vaddr + bytesWritten);
+			int amount = Math.min(length - bytesWritten, pageSize - pageOffset);
+
+			TranslationEntry entry = translatePage(Processor.pageFromAddress(vaddr
+					+ bytesWritten), true);
+			if (entry == null)
+				break;
+			if (entry.readOnly) {
+				releasePage(entry);
+				break;
 			}
-			
-			return 0;
+
+			System.arraycopy(data, offset + bytesWritten, memory, entry.ppn
+					* pageSize + pageOffset, amount);
+			entry.used = entry.dirty = true;
+			releasePage(entry);
+
+			bytesWritten += amount;
 		}
-		
-		/**
-		 * A reference to the data array we are supposed to fill or write from
-		 */
-		protected byte[] data;
-		
-		/**
-		 * Which access should occur
-		 */
-		protected AccessType accessType;
-		
-		/**
-		 * The translation entry corresponding to the appropriate page to be accessed.
-		 */
-		protected TranslationEntry translationEntry;
-		
-		/**
-		 * Bounds for accessing the data array.
-		 */
-		protected int dataStart;
-		
-		/**
-		 * Bounds for accessing the page.
-		 */
-		protected int pageStart;
+		memoryAccessLock.release();
 
-		/**
-		 * Length of the access (the same for the array and the page).
-		 */
-		protected int length;
-		
-		/**
-		 * The VPN of the page needed.
-		 */
-		protected int vpn;
+		return bytesWritten;
 	}
-	
-	/**
-	 * An enum to represent what data access should be done
-	 */
-	protected static enum AccessType {
-		READ, WRITE
-	};
 
 	/**
 	 * Load the executable with the specified name into this process, and
@@ -356,26 +339,19 @@ public class UserProcess {
 	protected boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		image = UserKernel.execCache.acquire(name);
+		if (image == null)
 			return false;
-		}
 
-		try {
-			coff = new Coff(executable);
-		} catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		coff = image.getCoff();
+		executableId = image.getIdentity();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				releaseExecutable();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
@@ -391,7 +367,7 @@ public class UserProcess {
 			argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-			coff.close();
+			releaseExecutable();
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
@@ -442,35 +418,65 @@ public class UserProcess {
 	 * memory. If this returns successfully, the process will definitely be run
 	 * (this is the last step in process initialization that can fail).
 	 * 
+	 * <p>
+	 * The sections are copied from the executable's template if it has one.
+	 * Otherwise they are loaded from the executable, and become its template.
+	 * 
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
 		try {
-			pageTable = ((UserKernel) Kernel.kernel).acquirePages(numPages);
+			UserKernel kernel = (UserKernel) Kernel.kernel;
+			pageTable = kernel.acquirePages(numPages);
 			
 			for (int i = 0; i < pageTable.length; i++)
 				pageTable[i].vpn = i;
 			
-			for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
-				CoffSection section = coff.getSection(sectionNumber);
-
-				Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+			ProcessTemplate template = image.getTemplate();
+			if (template != null) {
+				Lib.debug(dbgProcess, "\tinitializing sections from template");
+				kernel.loadTemplate(template, pageTable);
+			} else {
+				for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
+					CoffSection section = coff.getSection(sectionNumber);
+
+					Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+
+					int firstVPN = section.getFirstVPN();
+					for (int i = 0; i < section.getLength(); i++)
+						section.loadPage(i, pageTable[i+firstVPN].ppn);
+				}
 
-				int firstVPN = section.getFirstVPN();
-				for (int i = 0; i < section.getLength(); i++)
-					section.loadPage(i, pageTable[i+firstVPN].ppn);
+				if (UserKernel.processTemplates)
+					UserKernel.execCache.attachTemplate(image,
+							kernel.createTemplate(pageTable, numPages - stackPages - 1));
 			}
 		} catch (InadequatePagesException a) {
-			coff.close();
+			releaseExecutable();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		} catch (ClassCastException c) {
 			Lib.assertNotReached("Error : instantiating a UserProcess without a UserKernel");
 		}
 
+		// every page is loaded, so the executable is no longer needed
+		releaseExecutable();
+
 		return true;
 	}
 
+	/**
+	 * Release this process's reference to its executable's image, if it
+	 * still holds one. The sections of <tt>coff</tt> must not be loaded
+	 * afterwards.
+	 */
+	protected void releaseExecutable() {
+		if (image != null) {
+			UserKernel.execCache.release(image);
+			image = null;
+		}
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
@@ -487,11 +493,20 @@ public class UserProcess {
 	 * program loaded into this process. Set the PC register to point at the
 	 * start function, set the stack pointer register to point at the top of the
 	 * stack, set the A0 and A1 registers to argc and argv, respectively, and
-	 * initialize all other registers to 0.
+	 * initialize all other registers to 0. A forked process instead starts
+	 * with the registers set up by <tt>startForkedChild()</tt>.
 	 */
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked process continues where its parent was
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -505,6 +520,71 @@ public class UserProcess {
 		processor.writeRegister(Processor.regA1, argv);
 	}
 
+	/**
+	 * Start a child process that is a copy of this one, for fork. The caller
+	 * must already have given the child a copy of this process's memory. The
+	 * child becomes this process's child as though it had been exec'd, shares
+	 * its open files, and starts running as though it had just returned 0 from
+	 * the current syscall.
+	 * 
+	 * @param child
+	 *            the new process.
+	 * @return the PID of the child.
+	 */
+	protected int startForkedChild(UserProcess child) {
+		Processor processor = Machine.processor();
+
+		// The child resumes after the syscall instruction, with a result of 0
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+		child.forkRegisters[Processor.regNextPC] = child.forkRegisters[Processor.regPC] + 4;
+
+		// Replace the child's own stdin/stdout with our open files
+		for (int fileDesc = 0; fileDesc < fileTable.length; fileDesc++) {
+			if (validFileDescriptor(fileDesc))
+				shareFile(fileDesc, child, fileDesc);
+			else if (child.validFileDescriptor(fileDesc))
+				child.handleClose(fileDesc);
+		}
+
+		child.parent = this;
+		children.put(child.PID, new ChildProcess(child));
+
+		String name = KThread.currentThread().getName();
+		new UThread(child).setName(name).setCpuAccount(
+				CpuUsage.newAccount("process " + child.PID + " " + name)).fork();
+
+		return child.PID;
+	}
+
+	/**
+	 * Make a descriptor of a process refer to the same open file as one of
+	 * ours, closing whatever it referred to before. The file stays open until
+	 * its last descriptor is closed.
+	 * 
+	 * @param fileDesc
+	 *            our descriptor, which must be valid.
+	 * @param process
+	 *            the process to share the file with, which may be this one.
+	 * @param processDesc
+	 *            the process's descriptor to make refer to the file.
+	 */
+	protected void shareFile(int fileDesc, UserProcess process, int processDesc) {
+		if (process.validFileDescriptor(processDesc))
+			process.handleClose(processDesc);
+
+		OpenFile file = fileTable[fileDesc];
+		sharedStateLock.acquire();
+		Integer sharers = sharedFiles.get(file);
+		sharedFiles.put(file, sharers == null ? 1 : sharers + 1);
+		sharedStateLock.release();
+
+		process.fileTable[processDesc] = file;
+	}
+
 	/**
 	 * Handle the halt() system call.
 	 */
@@ -513,9 +593,9 @@ public class UserProcess {
 		if (PID != 0)
 			return 0;
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -533,7 +613,7 @@ public class UserProcess {
 	/**
 	 * Return whether the given file descriptor is valid
 	 */
-	private boolean validFileDescriptor(int fileDesc) {
+	protected boolean validFileDescriptor(int fileDesc) {
 		// In range?
 		if (fileDesc < 0 || fileDesc >= fileTable.length)
 			return false;
@@ -581,6 +661,10 @@ public class UserProcess {
 		if (!FileRef.referenceFile(fileName))
 			return -1;	// Cannot make new references to files that are marked for deletion
 
+		// A program is not run from a cached image of a file being truncated
+		if (create)
+			UserKernel.execCache.invalidate(fileName);
+
 		// Attempt to actually open the file
 		OpenFile file = UserKernel.fileSystem.open(fileName, create);
 		if (file == null) {
@@ -609,20 +693,57 @@ public class UserProcess {
 	private int handleRead(int fileDesc, int bufferPtr, int size) {
 		if (!validAddress(bufferPtr))
 			return terminate();
-		if (!validFileDescriptor(fileDesc))
+		if (!validFileDescriptor(fileDesc) || size < 0)
 			return -1;
 
-		byte buffer[] = new byte[size];
-		int bytesRead = fileTable[fileDesc].read(buffer, 0, size);
+		return readFile(fileTable[fileDesc], bufferPtr, size);
+	}
 
-		// Failed to read
-		if (bytesRead == -1)
-			return -1;
+	/**
+	 * Read data from an open file straight into the physical pages of a
+	 * buffer, a page at a time.
+	 * 
+	 * @return the number of bytes read, which is less than <i>size</i> only
+	 *         if the file had no more data available, or -1 on error.
+	 */
+	int readFile(OpenFile file, int bufferPtr, int size) {
+		int bytesRead = 0;
+		while (bytesRead < size) {
+			int vaddr = bufferPtr + bytesRead;
+			int pageOffset = Processor.offsetFromAddress(vaddr);
+			int amount = Math.min(size - bytesRead, pageSize - pageOffset);
+
+			// A pipe is waited on for the first byte before any page is pinned,
+			// and then gives up only what it holds
+			boolean readable = bytesRead == 0 && file instanceof Pipe.ReadEnd
+					&& ((Pipe.ReadEnd) file).awaitReadable();
+
+			TranslationEntry entry = translatePage(Processor.pageFromAddress(vaddr), true);
+			// We can't put what we read into the buffer!
+			if (entry == null)
+				return -1;
+			if (entry.readOnly) {
+				releasePage(entry);
+				return -1;
+			}
 
-		int bytesWritten = writeVirtualMemory(bufferPtr, buffer, 0, bytesRead);
-		// We weren't able to write the whole buffer to memory!
-		if (bytesWritten != bytesRead)
-			return -1;
+			int count = file.read(Machine.processor().getMemory(), entry.ppn
+					* pageSize + pageOffset, amount);
+			if (count > 0)
+				entry.used = entry.dirty = true;
+			releasePage(entry);
+
+			// Failed to read
+			if (count == -1)
+				return bytesRead == 0 ? -1 : bytesRead;
+
+			bytesRead += count;
+			// Another reader may have emptied the pipe since it was waited on
+			if (count == 0 && readable)
+				continue;
+			if (count < amount)
+				break;
+		}
 
 		return bytesRead;
 	}
@@ -641,17 +762,284 @@ public class UserProcess {
 	private int handleWrite(int fileDesc, int bufferPtr, int size) {
 		if (!validAddress(bufferPtr))
 			return terminate();
-		if (!validFileDescriptor(fileDesc))
+		if (!validFileDescriptor(fileDesc) || size < 0)
 			return -1;
 
-		byte buffer[] = new byte[size];
-		int bytesRead = readVirtualMemory(bufferPtr, buffer);
-		int bytesWritten = fileTable[fileDesc].write(buffer, 0, bytesRead);
+		return writeFile(fileTable[fileDesc], bufferPtr, size);
+	}
+
+	/**
+	 * Write data to an open file straight from the physical pages of a buffer,
+	 * a page at a time.
+	 * 
+	 * @return the number of bytes written, which is less than <i>size</i> only
+	 *         if the file accepted no more or the buffer ended early, or -1 on
+	 *         error.
+	 */
+	int writeFile(OpenFile file, int bufferPtr, int size) {
+		// Streams such as the console and pipes have no length, and are never
+		// executables
+		if (file.length() >= 0)
+			UserKernel.execCache.invalidate(file.getName());
+
+		int bytesWritten = 0;
+		while (bytesWritten < size) {
+			int vaddr = bufferPtr + bytesWritten;
+			int pageOffset = Processor.offsetFromAddress(vaddr);
+			int amount = Math.min(size - bytesWritten, pageSize - pageOffset);
+
+			// A pipe is waited on for room before the page is pinned
+			boolean pipe = file instanceof Pipe.WriteEnd;
+			if (pipe)
+				((Pipe.WriteEnd) file).awaitWritable();
+
+			// Write as much of the buffer as is mapped
+			TranslationEntry entry = translatePage(Processor.pageFromAddress(vaddr), false);
+			if (entry == null)
+				break;
+
+			int count = file.write(Machine.processor().getMemory(), entry.ppn
+					* pageSize + pageOffset, amount);
+			entry.used = true;
+			releasePage(entry);
+
+			// -1 if error
+			if (count == -1)
+				return bytesWritten == 0 ? -1 : bytesWritten;
+
+			bytesWritten += count;
+			// A pipe takes what fits, and is waited on again for the rest
+			if (count < amount && !pipe)
+				break;
+		}
 
-		// -1 if error
 		return bytesWritten;
 	}
 
+	/**
+	 * Read data from an open file into several buffers, filling each in turn.
+	 * @param fileDesc
+	 * 		File descriptor
+	 * @param iovPtr
+	 * 		Pointer to an array of <tt>struct iovec</tt> in virtual memory
+	 * @param iovCount
+	 * 		Number of buffers in the array
+	 * @return
+	 * 		Total number of bytes read, or -1 on error
+	 */
+	private int handleReadv(int fileDesc, int iovPtr, int iovCount) {
+		int result = checkIovecs(fileDesc, iovPtr, iovCount);
+		if (result != 0)
+			return result;
+
+		OpenFile file = fileTable[fileDesc];
+		byte[] iovec = new byte[iovecSize];
+		int bytesRead = 0;
+		for (int i = 0; i < iovCount; i++) {
+			readVirtualMemory(iovPtr + i * iovecSize, iovec);
+			int base = Lib.bytesToInt(iovec, 0), length = Lib.bytesToInt(iovec, 4);
+
+			int count = readFile(file, base, length);
+			if (count == -1)
+				return bytesRead == 0 ? -1 : bytesRead;
+
+			bytesRead += count;
+			// Like read(), return what is available now rather than waiting
+			if (count < length)
+				break;
+		}
+
+		return bytesRead;
+	}
+
+	/**
+	 * Write data from several buffers to an open file, each in turn.
+	 * @param fileDesc
+	 * 		File descriptor
+	 * @param iovPtr
+	 * 		Pointer to an array of <tt>struct iovec</tt> in virtual memory
+	 * @param iovCount
+	 * 		Number of buffers in the array
+	 * @return
+	 * 		Total number of bytes written, or -1 on error
+	 */
+	private int handleWritev(int fileDesc, int iovPtr, int iovCount) {
+		int result = checkIovecs(fileDesc, iovPtr, iovCount);
+		if (result != 0)
+			return result;
+
+		OpenFile file = fileTable[fileDesc];
+		byte[] iovec = new byte[iovecSize];
+		int bytesWritten = 0;
+		for (int i = 0; i < iovCount; i++) {
+			readVirtualMemory(iovPtr + i * iovecSize, iovec);
+			int base = Lib.bytesToInt(iovec, 0), length = Lib.bytesToInt(iovec, 4);
+
+			int count = writeFile(file, base, length);
+			if (count == -1)
+				return bytesWritten == 0 ? -1 : bytesWritten;
+
+			bytesWritten += count;
+			if (count < length)
+				break;
+		}
+
+		return bytesWritten;
+	}
+
+	/**
+	 * Check the arguments of <tt>readv()</tt> or <tt>writev()</tt> before
+	 * anything is transferred, so that a bad buffer late in the array cannot
+	 * leave a transfer half done.
+	 * @return
+	 * 		0 if the arguments are good, -1 if the call should fail, or the
+	 * 		result of terminating the process if a pointer is invalid
+	 */
+	private int checkIovecs(int fileDesc, int iovPtr, int iovCount) {
+		if (iovCount < 0 || iovCount > maxIovecs || !validFileDescriptor(fileDesc))
+			return -1;
+		if (iovCount == 0)
+			return 0;
+
+		byte[] iovec = new byte[iovecSize];
+		long total = 0;
+		for (int i = 0; i < iovCount; i++) {
+			if (readVirtualMemory(iovPtr + i * iovecSize, iovec) != iovecSize)
+				return terminate();
+			int base = Lib.bytesToInt(iovec, 0), length = Lib.bytesToInt(iovec, 4);
+
+			if (length < 0)
+				return -1;
+			if (length > 0 && !validAddress(base))
+				return terminate();
+			total += length;
+		}
+
+		// The total must be representable in the return value
+		return total > Integer.MAX_VALUE ? -1 : 0;
+	}
+
+	/**
+	 * Return the open file a descriptor refers to, if it may be read and
+	 * written through the descriptor.
+	 * @param fileDesc
+	 * 		File descriptor
+	 * @return
+	 * 		The open file, or null if there is none or it may not be transferred
+	 */
+	protected OpenFile fileForTransfer(int fileDesc) {
+		if (!validFileDescriptor(fileDesc))
+			return null;
+		return fileTable[fileDesc];
+	}
+
+	/**
+	 * Register a submission and completion ring for asynchronous I/O
+	 * @param ringPtr
+	 * 		Pointer to a <tt>struct io_ring</tt> in virtual memory
+	 * @param entries
+	 * 		Number of entries in each of the ring's arrays
+	 * @return
+	 * 		0 on success, or -1 on error
+	 */
+	private int handleIoSetup(int ringPtr, int entries) {
+		if (ioRing != null || entries <= 0 || entries > maxIoEntries)
+			return -1;
+
+		byte[] header = new byte[IoRing.headerSize];
+		if (readVirtualMemory(ringPtr, header) != header.length)
+			return terminate();
+		int sqesPtr = Lib.bytesToInt(header, IoRing.sqesOffset);
+		int cqesPtr = Lib.bytesToInt(header, IoRing.cqesOffset);
+
+		// Both arrays must be entirely in memory
+		if (!validAddress(sqesPtr) || !validAddress(sqesPtr + entries * IoRing.sqeSize - 1)
+				|| !validAddress(cqesPtr) || !validAddress(cqesPtr + entries * IoRing.cqeSize - 1))
+			return terminate();
+
+		ioRing = new IoRing(this, ringPtr, sqesPtr, cqesPtr, entries);
+		return 0;
+	}
+
+	/**
+	 * Submit queued asynchronous I/O operations, and wait for completions
+	 * @param toSubmit
+	 * 		Most operations to submit from the submission ring
+	 * @param minComplete
+	 * 		Number of completions to wait for
+	 * @return
+	 * 		Number of operations submitted, or -1 on error
+	 */
+	private int handleIoEnter(int toSubmit, int minComplete) {
+		if (ioRing == null)
+			return -1;
+
+		int submitted = ioRing.enter(toSubmit, minComplete);
+		// A bad buffer is fatal, as for read() and write()
+		if (submitted == -1)
+			return terminate();
+
+		return submitted;
+	}
+
+	/**
+	 * Create a pipe, and return descriptors for its two ends
+	 * @param fileDescsPtr
+	 * 		Pointer to an array of two file descriptors, where the read end and
+	 * 		then the write end are stored
+	 * @return
+	 * 		0 on success, or -1 on error
+	 */
+	private int handlePipe(int fileDescsPtr) {
+		if (!validAddress(fileDescsPtr) || !validAddress(fileDescsPtr + 7))
+			return terminate();
+
+		// Both ends need a place in the file table
+		int readDesc = getFileDescriptor();
+		if (readDesc == -1)
+			return -1;
+		int writeDesc = readDesc + 1;
+		while (writeDesc < fileTable.length && fileTable[writeDesc] != null)
+			writeDesc++;
+		if (writeDesc == fileTable.length)
+			return -1;
+
+		byte[] fileDescs = new byte[8];
+		Lib.bytesFromInt(fileDescs, 0, readDesc);
+		Lib.bytesFromInt(fileDescs, 4, writeDesc);
+		if (writeVirtualMemory(fileDescsPtr, fileDescs) != fileDescs.length)
+			return -1;
+
+		Pipe pipe = new Pipe(pipeSize);
+		fileTable[readDesc] = pipe.openForReading();
+		FileRef.referenceFile(fileTable[readDesc].getName());
+		fileTable[writeDesc] = pipe.openForWriting();
+		FileRef.referenceFile(fileTable[writeDesc].getName());
+
+		return 0;
+	}
+
+	/**
+	 * Make a file descriptor refer to the same file as another, closing it
+	 * first if it is open
+	 * @param fileDesc
+	 * 		File descriptor to copy
+	 * @param newFileDesc
+	 * 		File descriptor to make refer to the file
+	 * @return
+	 * 		newFileDesc on success, or -1 on error
+	 */
+	private int handleDup2(int fileDesc, int newFileDesc) {
+		// A mapped file can't be reached by another descriptor either
+		if (fileForTransfer(fileDesc) == null || newFileDesc < 0 || newFileDesc >= fileTable.length)
+			return -1;
+
+		if (newFileDesc != fileDesc)
+			shareFile(fileDesc, this, newFileDesc);
+
+		return newFileDesc;
+	}
+
 	/**
 	 * Close a file and free its place in the file table
 	 * @param fileDesc
@@ -659,16 +1047,31 @@ public class UserProcess {
 	 * @return
 	 * 		0 on success, -1 on error
 	 */
-	private int handleClose(int fileDesc) {
+	protected int handleClose(int fileDesc) {
 		if (!validFileDescriptor(fileDesc))
 			return -1;
 
-		String fileName = fileTable[fileDesc].getName();
+		OpenFile file = fileTable[fileDesc];
 
 		// Remove the file from our file table
-		fileTable[fileDesc].close();
 		fileTable[fileDesc] = null;
 
+		// A file shared by fork stays open until its last descriptor is closed
+		sharedStateLock.acquire();
+		Integer sharers = sharedFiles.get(file);
+		if (sharers != null) {
+			if (sharers == 1)
+				sharedFiles.remove(file);
+			else
+				sharedFiles.put(file, sharers - 1);
+		}
+		sharedStateLock.release();
+		if (sharers != null)
+			return 0;
+
+		String fileName = file.getName();
+		file.close();
+
 		// Unreference the file and delete if necessary
 		return FileRef.unreferenceFile(fileName);
 	}
@@ -734,19 +1137,40 @@ public class UserProcess {
 			arguments[i] = readVirtualMemoryString(pointer, maxSyscallArgLength);
 		}
 
-		// New process
+		// New process, whose stdin/stdout are ours, so that they can be pipes
 		UserProcess newChild = newUserProcess();
 		newChild.parent = this;
+		for (int fileDesc = 0; fileDesc <= 1; fileDesc++)
+			if (validFileDescriptor(fileDesc))
+				shareFile(fileDesc, newChild, fileDesc);
 
 		// Remember our children
 		children.put(newChild.PID, new ChildProcess(newChild));
 
 		// Run and be free!
-		newChild.execute(fileName, arguments);
+		if (!newChild.execute(fileName, arguments)) {
+			children.remove(newChild.PID);
+			newChild.abandon();
+			return -1;
+		}
 
 		return newChild.PID;
 	}
 
+	/**
+	 * Release the files of a process that could not be executed, which will
+	 * never run to exit.
+	 */
+	private void abandon() {
+		for (int fileDesc = 0; fileDesc < fileTable.length; fileDesc++)
+			if (validFileDescriptor(fileDesc))
+				handleClose(fileDesc);
+
+		sharedStateLock.acquire();
+		runningProcesses--;
+		sharedStateLock.release();
+	}
+
 	/**
 	 * Handle exiting and cleanup of a process
 	 * @param status
@@ -767,6 +1191,18 @@ public class UserProcess {
 				child.process.disown();
 		children = null;
 
+		// Asynchronous I/O may still be using our files and memory. Operations
+		// that haven't started are cancelled, and our ends of streams are
+		// closed first, so that an operation waiting on a stream that only we
+		// hold gives up rather than waiting for us.
+		if (ioRing != null) {
+			ioRing.cancel();
+			for (int fileDesc = 0; fileDesc < fileTable.length; fileDesc++)
+				if (validFileDescriptor(fileDesc) && fileTable[fileDesc].length() < 0)
+					handleClose(fileDesc);
+			ioRing.drain();
+		}
+
 		// Loop through all open files and close them, releasing references
 		for (int fileDesc = 0; fileDesc < fileTable.length; fileDesc++)
 			if (validFileDescriptor(fileDesc))
@@ -877,7 +1313,9 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 	syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 	syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+	syscallIoSetup = 16, syscallIoEnter = 17, syscallPipe = 18,
+	syscallDup2 = 19;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -931,6 +1369,34 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  io_setup(struct io_ring *ring, int entries);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  io_enter(int toSubmit, int minComplete);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  dup2(int fd, int newfd);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall
@@ -969,6 +1435,18 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
+		case syscallIoSetup:
+			return handleIoSetup(a0, a1);
+		case syscallIoEnter:
+			return handleIoEnter(a0, a1);
+		case syscallPipe:
+			return handlePipe(a0);
+		case syscallDup2:
+			return handleDup2(a0, a1);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -990,11 +1468,14 @@ public class UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
+			int syscall = processor.readRegister(Processor.regV0);
+			Trace.begin(Trace.syscall, syscall);
+			int result = handleSyscall(syscall,
 					processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
 					processor.readRegister(Processor.regA3));
+			Trace.end(Trace.syscall, syscall);
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;
@@ -1082,6 +1563,7 @@ public class UserProcess {
 			if (ref.references <= 0) {
 				globalFileReferences.remove(fileName);
 				if (ref.delete == true) {
+					UserKernel.execCache.invalidate(fileName);
 					if (!UserKernel.fileSystem.remove(fileName))
 						return -1;
 				}
@@ -1119,11 +1601,13 @@ public class UserProcess {
 
 		/** Global file reference tracker & lock */
 		private static HashMap<String, FileRef> globalFileReferences = new HashMap<String, FileRef> ();
-		private static Lock globalFileReferencesLock = new Lock();
+		private static Lock globalFileReferencesLock = new Lock(
+				"FileRef.globalFileReferencesLock");
 	}
 
 	/** Lock to protect static variables */
-	private static Lock sharedStateLock = new Lock();
+	private static Lock sharedStateLock = new Lock(
+			"UserProcess.sharedStateLock");
 
 	/** Process ID */
 	private static int nextPID = 0;
@@ -1135,6 +1619,13 @@ public class UserProcess {
 
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The cached image <tt>coff</tt> belongs to, while it is needed. */
+	protected ExecCache.Image image;
+	/**
+	 * Identifies the executable file, and which version of it, the program was
+	 * loaded from.
+	 */
+	protected String executableId;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
@@ -1146,6 +1637,8 @@ public class UserProcess {
 
 	private int initialPC, initialSP;
 	private int argc, argv;
+	/** The initial registers of a forked process, or null. */
+	private int[] forkRegisters = null;
 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
@@ -1153,19 +1646,35 @@ public class UserProcess {
 	/**
 	 * A lock to protect memory accesses.
 	 */
-	private Lock memoryAccessLock = new Lock();
+	private Lock memoryAccessLock = new Lock(
+			"UserProcess.memoryAccessLock");
 
 	/** Process file descriptor table */
 	protected OpenFile[] fileTable = new OpenFile[16];
 
+	/** The asynchronous I/O ring registered by <tt>io_setup()</tt>, or null. */
+	private IoRing ioRing = null;
+
 	/** Join condition */
 	private boolean exited = false;
-	private Lock joinLock = new Lock();
+	private Lock joinLock = new Lock("UserProcess.joinLock");
 	private Condition waitingToJoin;
 
 	/** Number of processes */
 	private static int runningProcesses = 0;
 
+	/**
+	 * Open files shared between processes by fork, with the number of extra
+	 * descriptors referring to each.
+	 */
+	private static HashMap<OpenFile, Integer> sharedFiles = new HashMap<OpenFile, Integer>();
+
 	/** The maximum length of any system call string argument */
 	private static final int maxSyscallArgLength = 256;
+	/** The size in bytes of a <tt>struct iovec</tt>, and the most one call may pass */
+	private static final int iovecSize = 8, maxIovecs = 16;
+	/** The most entries an asynchronous I/O ring may have */
+	private static final int maxIoEntries = 64;
+	/** The number of bytes a pipe can hold */
+	private static final int pipeSize = 4096;
 }
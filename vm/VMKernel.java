@@ -30,8 +30,9 @@ public class VMKernel extends UserKernel {
 	@Override
 	public void initialize(String[] args) {
 		super.initialize(args);
-		memoryLock = new Lock();
-		allPinned = new Condition(memoryLock);
+		memoryLock = new Lock("VMKernel.memoryLock");
+		allPinned = new Condition(memoryLock, "VMKernel.allPinned");
+		writeBacksDone = new Condition(memoryLock, "VMKernel.writeBacksDone");
 		swap = new Swap();
 	}
 
@@ -73,7 +74,7 @@ public class VMKernel extends UserKernel {
 			MemoryEntry page = coremap[clockHand];
 
 			// Skip pinned pages
-			if (page.pinned)
+			if (page.pinned > 0)
 				continue;
 
 			// Prefer invalid pages
@@ -91,21 +92,50 @@ public class VMKernel extends UserKernel {
 		}
 
 		MemoryEntry me = coremap[clockHand];
-		pinnedCount++;//we don't have to check if it is pinned because it should only be unpinned at this point
-		me.pinned = true;
+		pin(me);
+
+		//An executable's page can always be reloaded from the executable, so it is never swapped
+		boolean text = me.textKey != null;
+		if (text) {
+			textPages.remove(me.textKey);
+			me.textKey = null;
+		}
 
 		invalidateTLBEntry(clockHand);
 
 		//Remove the mapping from the page table
 		MemoryEntry me1 = null;
-		if (me.processID > -1)
+		FileMapping mapping = null;
+		if (me.processID > -1) {
 			me1 = invertedPageTable.remove(new TableKey(me.translationEntry.vpn, me.processID));
+			for (int pid : me.sharers)
+				invertedPageTable.remove(new TableKey(me.translationEntry.vpn, pid));
+			mapping = findMapping(me.translationEntry.vpn, me.processID);
+
+			//unmapFile() no longer sees this page, so it waits for the write-back before the file is closed
+			if (mapping != null && me1 != null && !text && me.translationEntry.dirty)
+				mapping.writeBacks++;
+		}
 
 		memoryLock.release();
 
 		//swap out the page here if the page had existed in memory
 		//FIXME: Will we always need to swap out?
-		if (me1 != null) swap.swapOut(me);
+		if (me1 != null && !text) {
+			//A file-backed page goes back to its file, and only if it was written
+			if (mapping != null) {
+				if (me.translationEntry.dirty) {
+					mapping.writeBack(me.translationEntry.vpn, me.translationEntry.ppn);
+
+					memoryLock.acquire();
+					if (--mapping.writeBacks == 0)
+						writeBacksDone.wakeAll();
+					memoryLock.release();
+				}
+			} else {
+				swap.swapOut(me);
+			}
+		}
 
 		return me;
 	}
@@ -129,7 +159,10 @@ public class VMKernel extends UserKernel {
 		// Set page attributes
 		page.translationEntry.vpn = vpn;
 		page.translationEntry.valid = true;
+		page.translationEntry.dirty = false;
 		page.processID = pid;
+		page.sharers.clear();
+		page.copyOnWrite = false;
 
 		// Add to inverted page table
 		insertIntoTable(vpn, pid, page);
@@ -153,6 +186,19 @@ public class VMKernel extends UserKernel {
 	 * @return TranslationEntry of the newly swapped page, or null if not found
 	 */
 	TranslationEntry pageFault(int vpn, int pid) {
+		memoryLock.acquire();
+		FileMapping mapping = findMapping(vpn, pid);
+		memoryLock.release();
+
+		//File-backed pages are always read from their file
+		if (mapping != null) {
+			TranslationEntry te = requestFreePage(vpn, pid);
+			mapping.load(vpn, te.ppn);
+			te.readOnly = false;
+			te.dirty = false;
+			return te;
+		}
+
 		if (!swap.pageInSwap(vpn, pid))
 			return null;
 		TranslationEntry te = requestFreePage(vpn, pid);
@@ -171,13 +217,17 @@ public class VMKernel extends UserKernel {
 	void freePages(int pid, int maxVPN) {
 		memoryLock.acquire();
 		for (MemoryEntry page : coremap)
-			if (page.processID == pid) {
+			if (page.processID == pid || page.sharers.contains(pid)) {
 				// Remove from inverted page table
-				invertedPageTable.remove(new TableKey(page.translationEntry.vpn, page.processID));
-
-				// Invalidate coremap entry
-				page.processID = -1;
-				page.translationEntry.valid = false;
+				invertedPageTable.remove(new TableKey(page.translationEntry.vpn, pid));
+
+				// Invalidate coremap entry, unless other processes still share it
+				if (page.sharers.isEmpty()) {
+					page.processID = -1;
+					page.translationEntry.valid = false;
+				} else {
+					removeSharer(page, pid);
+				}
 			}
 
 		memoryLock.release();
@@ -185,6 +235,268 @@ public class VMKernel extends UserKernel {
 		swap.freePages(maxVPN, pid);
 	}
 
+	/**
+	 * Return a page of a read-only section of an executable, sharing it with
+	 * every other process running the same executable. The page is loaded from
+	 * the executable if it isn't resident, and stays cached after the last
+	 * process using it exits, until the clock evicts it.
+	 * The page will be pinned.
+	 * @param executable identifies the executable and its version
+	 * @param section the read-only section
+	 * @param spn the page within the section
+	 * @param vpn
+	 * @param pid
+	 * @return TranslationEntry of the page
+	 */
+	TranslationEntry sharedTextPage(String executable, CoffSection section, int spn, int vpn, int pid) {
+		TextKey key = new TextKey(executable, vpn);
+		TranslationEntry loaded = null;
+
+		memoryLock.acquire();
+		MemoryEntry page = textPages.get(key);
+		if (page == null) {
+			memoryLock.release();
+
+			loaded = requestFreePage(vpn, pid);
+			section.loadPage(spn, loaded.ppn);
+			loaded.readOnly = true;
+
+			memoryLock.acquire();
+			page = textPages.get(key);
+			if (page == null) {
+				coremap[loaded.ppn].textKey = key;
+				textPages.put(key, coremap[loaded.ppn]);
+				memoryLock.release();
+				return loaded;
+			}
+
+			//Another process loaded the page meanwhile, so use its copy instead
+			invertedPageTable.remove(new TableKey(vpn, pid));
+			coremap[loaded.ppn].processID = -1;
+			loaded.valid = false;
+		}
+
+		pin(page);
+
+		if (page.processID == -1) {
+			//Cached after its last user exited
+			page.processID = pid;
+			page.translationEntry.valid = true;
+			invertedPageTable.put(new TableKey(vpn, pid), page);
+		} else if (page.processID != pid && !page.sharers.contains(pid)) {
+			page.sharers.add(pid);
+			invertedPageTable.put(new TableKey(vpn, pid), page);
+		}
+		memoryLock.release();
+
+		if (loaded != null)
+			unpin(loaded.ppn);
+
+		return page.translationEntry;
+	}
+
+	/**
+	 * Make a template of an executable, by loading its writable sections into
+	 * pages of their own. Processes running the executable share these pages
+	 * copy-on-write, through <tt>forkPages()</tt>, instead of loading them from
+	 * the executable. Like other pages, they may be swapped out. Read-only
+	 * sections are shared by <tt>sharedTextPage()</tt> instead.
+	 * @param pid a process ID no process uses, to own the template's pages
+	 * @param coff the executable
+	 * @return the new template
+	 */
+	Template createTemplate(int pid, Coff coff) {
+		int maxVPN = 0;
+		for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
+			CoffSection section = coff.getSection(sectionNumber);
+			maxVPN = Math.max(maxVPN, section.getFirstVPN() + section.getLength());
+			if (section.isReadOnly())
+				continue;
+
+			for (int i = 0; i < section.getLength(); i++) {
+				TranslationEntry te = requestFreePage(section.getFirstVPN() + i, pid);
+				section.loadPage(i, te.ppn);
+				te.readOnly = false;
+				unpin(te.ppn);
+			}
+		}
+
+		return new Template(pid, maxVPN);
+	}
+
+	/**
+	 * Share all of a process's resident and swapped pages with a forked child,
+	 * at the same virtual pages. Writable pages become read-only in both until
+	 * one of them writes, when <tt>copyOnWrite()</tt> gives the writer its own
+	 * copy.
+	 * @param parentPID
+	 * @param childPID
+	 * @param maxVPN the highest VPN of the process + 1
+	 */
+	void forkPages(int parentPID, int childPID, int maxVPN) {
+		memoryLock.acquire();
+		//The parent's TLB entries may still allow writes
+		propagateAndFlushTLB(true);
+
+		for (MemoryEntry page : coremap) {
+			TranslationEntry te = page.translationEntry;
+			if (te.valid && te.vpn < maxVPN && invertedPageTable.get(new TableKey(te.vpn, parentPID)) == page) {
+				if (!te.readOnly) {
+					te.readOnly = true;
+					page.copyOnWrite = true;
+				}
+				page.sharers.add(childPID);
+				invertedPageTable.put(new TableKey(te.vpn, childPID), page);
+			}
+		}
+		memoryLock.release();
+
+		swap.forkPages(parentPID, childPID, maxVPN);
+	}
+
+	/**
+	 * Called when a process writes to a read-only page. If the page is shared
+	 * copy-on-write, give the process its own writable copy, or make the page
+	 * writable if no other process shares it any more.
+	 * @param vpn
+	 * @param pid
+	 * @return false if the page really is read-only
+	 */
+	boolean copyOnWrite(int vpn, int pid) {
+		memoryLock.acquire();
+		MemoryEntry shared = invertedPageTable.get(new TableKey(vpn, pid));
+
+		//If the page was evicted meanwhile, it will be faulted back in writable
+		if (shared == null || !shared.copyOnWrite) {
+			memoryLock.release();
+			return shared == null;
+		}
+
+		if (shared.sharers.isEmpty()) {
+			shared.copyOnWrite = false;
+			shared.translationEntry.readOnly = false;
+			invalidateTLBEntry(shared.translationEntry.ppn);
+			memoryLock.release();
+			return true;
+		}
+
+		//Pin the shared page while it is copied
+		pin(shared);
+		memoryLock.release();
+
+		TranslationEntry copy = requestFreePage(vpn, pid);
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, shared.translationEntry.ppn * Processor.pageSize,
+				memory, copy.ppn * Processor.pageSize, Processor.pageSize);
+		copy.readOnly = false;
+		//The copy no longer matches any swapped copy of the shared page
+		copy.dirty = true;
+
+		memoryLock.acquire();
+		removeSharer(shared, pid);
+		invalidateTLBEntry(shared.translationEntry.ppn);
+		memoryLock.release();
+
+		unpin(shared.translationEntry.ppn);
+		unpin(copy.ppn);
+		return true;
+	}
+
+	/**
+	 * Stop a process sharing a page that other processes still share. Must be
+	 * called with the memory lock held.
+	 */
+	private void removeSharer(MemoryEntry page, int pid) {
+		if (page.processID == pid)
+			page.processID = page.sharers.removeFirst();
+		else
+			page.sharers.remove(Integer.valueOf(pid));
+	}
+
+	/**
+	 * Back a range of a process's virtual pages with a file instead of swap.
+	 * The pages are read from the file when they are first touched, and
+	 * written back to it only if they are dirty when evicted or unmapped.
+	 * @param pid
+	 * @param firstVPN the first page of the range.
+	 * @param file the file, which must stay open until the range is unmapped.
+	 * @param length the length of the file; the range covers all of it.
+	 * @return the new mapping
+	 */
+	FileMapping mapFile(int pid, int firstVPN, OpenFile file, int length) {
+		FileMapping mapping = new FileMapping(pid, firstVPN, file, length);
+
+		memoryLock.acquire();
+		LinkedList<FileMapping> mappings = fileMappings.get(pid);
+		if (mappings == null) {
+			mappings = new LinkedList<FileMapping>();
+			fileMappings.put(pid, mappings);
+		}
+		mappings.add(mapping);
+		memoryLock.release();
+
+		return mapping;
+	}
+
+	/**
+	 * Remove a file mapping, writing its dirty pages back to the file and
+	 * freeing the physical pages it held.
+	 * @param mapping
+	 */
+	void unmapFile(FileMapping mapping) {
+		LinkedList<MemoryEntry> resident = new LinkedList<MemoryEntry>();
+
+		memoryLock.acquire();
+		LinkedList<FileMapping> mappings = fileMappings.get(mapping.pid);
+		mappings.remove(mapping);
+		if (mappings.isEmpty())
+			fileMappings.remove(mapping.pid);
+
+		//Pick up writes that are only recorded in the TLB so far
+		propagateAndFlushTLB(false);
+
+		//Take the resident pages out of the page table, pinned so they can't be evicted
+		for (MemoryEntry page : coremap) {
+			if (page.processID == mapping.pid && mapping.contains(page.translationEntry.vpn)
+					&& invertedPageTable.remove(new TableKey(page.translationEntry.vpn, page.processID)) != null) {
+				pin(page);
+				resident.add(page);
+			}
+		}
+
+		//Wait for pages evicted before the mapping was removed, which are still being written back
+		while (mapping.writeBacks > 0)
+			writeBacksDone.sleep();
+		memoryLock.release();
+
+		for (MemoryEntry page : resident) {
+			if (page.translationEntry.dirty)
+				mapping.writeBack(page.translationEntry.vpn, page.translationEntry.ppn);
+
+			memoryLock.acquire();
+			invalidateTLBEntry(page.translationEntry.ppn);
+			page.processID = -1;
+			page.translationEntry.valid = false;
+			memoryLock.release();
+
+			unpin(page.translationEntry.ppn);
+		}
+	}
+
+	/**
+	 * Return the file mapping covering a virtual page, or null if there is none.
+	 * Must be called with the memory lock held.
+	 */
+	private FileMapping findMapping(int vpn, int pid) {
+		LinkedList<FileMapping> mappings = fileMappings.get(pid);
+		if (mappings != null) {
+			for (FileMapping mapping : mappings)
+				if (mapping.contains(vpn))
+					return mapping;
+		}
+		return null;
+	}
+
 	/**
 	 * Unpin the page corresponding to the physical page number.
 	 * @param ppn
@@ -193,16 +505,25 @@ public class VMKernel extends UserKernel {
 		memoryLock.acquire();
 		MemoryEntry me = coremap[ppn];
 
-		if (me.pinned)
+		Lib.assertTrue(me.pinned > 0);
+		if (--me.pinned == 0) {
 			pinnedCount--;
-
-		me.pinned = false;
-
-		allPinned.wake();
+			allPinned.wake();
+		}
 
 		memoryLock.release();
 	}
 
+	/**
+	 * Pin a page once more. A shared page can be pinned by several processes
+	 * at once, and can be evicted only after each of them has unpinned it.
+	 * Must be called with the memory lock held.
+	 */
+	private void pin(MemoryEntry me) {
+		if (me.pinned++ == 0)
+			pinnedCount++;
+	}
+
 	/**
 	 * Pin the page if it exists.
 	 * @param vpn
@@ -214,10 +535,7 @@ public class VMKernel extends UserKernel {
 		memoryLock.acquire();
 
 		if ((me = invertedPageTable.get(new TableKey(vpn, pid))) != null) {
-			//increased the pinned count, if applicable
-			if (!me.pinned)
-				pinnedCount++;
-			me.pinned = true;
+			pin(me);
 		}
 
 		memoryLock.release();
@@ -278,6 +596,89 @@ public class VMKernel extends UserKernel {
 		memoryLock.release();
 	}
 
+	/**
+	 * Tests whether file mappings are working. Unlike <tt>selfTest()</tt>,
+	 * which runs at every boot, this only runs when called.
+	 */
+	public static void mappingSelfTest() {
+		if (!(Kernel.kernel instanceof VMKernel))
+			return;
+
+		final VMKernel kernel = (VMKernel) Kernel.kernel;
+
+		// A dirty mapped page evicted while its file is being closed is
+		// written back before the file is closed. The file's writes block
+		// until the test lets them finish, holding the eviction in progress
+		final byte[] contents = new byte[Processor.pageSize];
+		final boolean[] closed = new boolean[1], writing = new boolean[1], wroteOpen = new boolean[1];
+		final Semaphore writeStarted = new Semaphore(0), writeAllowed = new Semaphore(0);
+		final OpenFile file = new OpenFile(null, "VMKernel.selfTest") {
+			@Override
+			public int read(int pos, byte[] buf, int offset, int length) {
+				System.arraycopy(contents, pos, buf, offset, length);
+				return length;
+			}
+
+			@Override
+			public int write(int pos, byte[] buf, int offset, int length) {
+				writing[0] = true;
+				writeStarted.V();
+				writeAllowed.P();
+				wroteOpen[0] = !closed[0];
+				System.arraycopy(buf, offset, contents, pos, length);
+				return length;
+			}
+
+			@Override
+			public int length() {
+				return contents.length;
+			}
+
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+
+		// No process is given this PID
+		final int pid = Integer.MAX_VALUE;
+		final FileMapping mapping = kernel.mapFile(pid, 0, file, contents.length);
+		TranslationEntry entry = kernel.pageFault(0, pid);
+		Machine.processor().getMemory()[Processor.makeAddress(entry.ppn, 0)] = 1;
+		entry.dirty = true;
+		kernel.unpin(entry.ppn);
+
+		// Fill memory with other pages until the mapped page is evicted
+		final int[] maxVPN = new int[1];
+		KThread evictor = new KThread(new Runnable() {
+			public void run() {
+				while (!writing[0]) {
+					TranslationEntry filler = kernel.requestFreePage(++maxVPN[0], pid);
+					kernel.unpin(filler.ppn);
+				}
+			}
+		}).setName("VMKernel evictor");
+		KThread closer = new KThread(new Runnable() {
+			public void run() {
+				kernel.unmapFile(mapping);
+				file.close();
+			}
+		}).setName("VMKernel closer");
+
+		evictor.fork();
+		writeStarted.P();
+		closer.fork();
+		ThreadedKernel.alarm.waitUntil(1000);
+		writeAllowed.V();
+		evictor.join();
+		closer.join();
+		kernel.freePages(pid, maxVPN[0] + 1);
+
+		System.out.println((wroteOpen[0] && closed[0] && contents[0] == 1 ? "[PASS]"
+				: "[FAIL]")
+				+ ": VMKernel writes back an evicted mapped page before its file is closed");
+	}
+
 	private static final char dbgVM = 'v';
 
 	/** The coremap indexed by physical page number */
@@ -289,15 +690,24 @@ public class VMKernel extends UserKernel {
 	/** A mapping from vaddr,PID to PPN */
 	private Hashtable<TableKey,MemoryEntry> invertedPageTable = new Hashtable<TableKey,MemoryEntry>();
 
+	/** Resident pages of read-only executable sections, shared by every process running the executable. */
+	private HashMap<TextKey,MemoryEntry> textPages = new HashMap<TextKey,MemoryEntry>();
+
+	/** The file mappings of each process, by PID. */
+	private HashMap<Integer,LinkedList<FileMapping>> fileMappings = new HashMap<Integer,LinkedList<FileMapping>>();
+
 	/** A lock to protected the memory mappings. */
 	private Lock memoryLock;
 
-	/** The number of memory entries that are pinned. */
+	/** The number of memory entries that are pinned at least once. */
 	private int pinnedCount;
 
 	/** A condition for all processes to wait on if there are no unpinned pages.*/
 	private Condition allPinned;
 
+	/** A condition for <tt>unmapFile()</tt> to wait on until a mapping's evicted pages are written back. */
+	private Condition writeBacksDone;
+
 	/** An inner class to act as a key for the inverted page table. */
 	private static class TableKey {
 		TableKey(int vpn1, int pid1) {
@@ -307,7 +717,7 @@ public class VMKernel extends UserKernel {
 
 		@Override
 		public int hashCode() {
-			return Processor.makeAddress(vpn, pid );//There should be no collisions with this hash
+			return vpn * 31 + pid;
 		}
 
 		@Override
@@ -325,6 +735,34 @@ public class VMKernel extends UserKernel {
 		private Integer vpn, pid;
 	}
 
+	/** A key for the executable page cache. */
+	private static class TextKey {
+		TextKey(String executable1, int vpn1) {
+			executable = executable1;
+			vpn = vpn1;
+		}
+
+		@Override
+		public int hashCode() {
+			return executable.hashCode() * 31 + vpn;
+		}
+
+		@Override
+		public boolean equals(Object x) {
+			if (this == x)
+				return true;
+			else if (x instanceof TextKey) {
+				TextKey xCasted = (TextKey)x;
+				return vpn == xCasted.vpn && executable.equals(xCasted.executable);
+			} else {
+				return false;
+			}
+		}
+
+		private String executable;
+		private int vpn;
+	}
+
 	/** A class to represent the entries in the coremap */
 	private static class MemoryEntry {
 		MemoryEntry (int ppn) {
@@ -333,7 +771,78 @@ public class VMKernel extends UserKernel {
 
 		TranslationEntry translationEntry;
 		int processID = -1;
-		boolean pinned = false;
+		/** Other processes sharing this page, at the same VPN, after a fork. */
+		LinkedList<Integer> sharers = new LinkedList<Integer>();
+		/** True if the page is read-only only until it is written. */
+		boolean copyOnWrite = false;
+		/** If this page is in the executable page cache, its key there. */
+		TextKey textKey = null;
+		/** The number of times this page is pinned; it can't be evicted while positive. */
+		int pinned = 0;
+	}
+
+	/** The pages of a template made by <tt>createTemplate()</tt>. */
+	class Template extends ProcessTemplate {
+		private Template(int pid1, int maxVPN1) {
+			pid = pid1;
+			maxVPN = maxVPN1;
+		}
+
+		/**
+		 * Free the template's pages. Processes started from it keep the pages
+		 * they share.
+		 */
+		@Override
+		public void discard() {
+			freePages(pid, maxVPN);
+		}
+
+		final int pid, maxVPN;
+	}
+
+	/** A range of virtual pages backed by a file, created by <tt>mapFile()</tt>. */
+	static class FileMapping {
+		private FileMapping(int pid1, int firstVPN1, OpenFile file1, int length1) {
+			pid = pid1;
+			firstVPN = firstVPN1;
+			file = file1;
+			length = length1;
+			numPages = (int) (((long) length + Processor.pageSize - 1) / Processor.pageSize);
+		}
+
+		/**
+		 * @return True if the virtual page is part of this mapping
+		 */
+		boolean contains(int vpn) {
+			return vpn >= firstVPN && vpn - firstVPN < numPages;
+		}
+
+		/**
+		 * Read the file's contents for a virtual page into a physical page. The part
+		 * of the last page past the end of the file is left as it is (zeroed).
+		 */
+		void load(int vpn, int ppn) {
+			int position = (vpn - firstVPN) * Processor.pageSize;
+			file.read(position, Machine.processor().getMemory(), ppn * Processor.pageSize,
+					Math.min(Processor.pageSize, length - position));
+		}
+
+		/**
+		 * Write a physical page back to the file's contents for a virtual page. The
+		 * file is never extended.
+		 */
+		void writeBack(int vpn, int ppn) {
+			execCache.invalidate(file.getName());
+
+			int position = (vpn - firstVPN) * Processor.pageSize;
+			file.write(position, Machine.processor().getMemory(), ppn * Processor.pageSize,
+					Math.min(Processor.pageSize, length - position));
+		}
+
+		final int pid, firstVPN, numPages, length;
+		private final OpenFile file;
+		/** The number of evicted pages being written back to the file. */
+		private int writeBacks = 0;
 	}
 
 	/**
@@ -360,28 +869,49 @@ public class VMKernel extends UserKernel {
 				SwapEntry swapEntry = null;
 				TableKey tk = new TableKey(me.translationEntry.vpn, me.processID);
 
-				swapLock.acquire();
-				if (me.translationEntry.dirty || !swapTable.containsKey(tk)) {
+				swapLock.acquireRead();
+				//Every process sharing the page needs a swapped copy
+				boolean missing = !swapTable.containsKey(tk);
+				for (int pid : me.sharers)
+					missing |= !swapTable.containsKey(new TableKey(me.translationEntry.vpn, pid));
+
+				if (me.translationEntry.dirty || missing) {
+					// Another reader is already upgrading; wait for it as a writer
+					if (!swapLock.upgrade()) {
+						swapLock.releaseRead();
+						swapLock.acquireWrite();
+					}
+
+					//A copy-on-write page is swapped with its real permission
+					boolean readOnly = me.translationEntry.readOnly && !me.copyOnWrite;
+
 					// Use a free position if available
 					if (freeList.size() > 0) {
 						swapEntry = freeList.removeFirst();
-						swapEntry.readOnly = me.translationEntry.readOnly;
+						swapEntry.readOnly = readOnly;
 					}
 					// Otherwise extend the swap file
 					else {
-						swapEntry = new SwapEntry(maxTableEntry++, me.translationEntry.readOnly); 
+						swapEntry = new SwapEntry(maxTableEntry++, readOnly); 
 					}
 
-					swapTable.put(tk, swapEntry);
+					swapEntry.references = 1 + me.sharers.size();
+					release(swapTable.put(tk, swapEntry));
+					for (int pid : me.sharers)
+						release(swapTable.put(new TableKey(me.translationEntry.vpn, pid), swapEntry));
+					swapLock.releaseWrite();
+				} else {
+					swapLock.releaseRead();
 				}
-				swapLock.release();
 
 				if (swapEntry != null) {
 					// Write the physical page
+					Trace.begin(Trace.swapOut, me.translationEntry.vpn);
 					Lib.assertTrue(swapFile.write(swapEntry.swapPageNumber * Processor.pageSize,
 							Machine.processor().getMemory(),
 							me.translationEntry.ppn * Processor.pageSize,
 							Processor.pageSize) == Processor.pageSize);
+					Trace.end(Trace.swapOut, me.translationEntry.vpn);
 				}
 			}
 		}
@@ -393,16 +923,18 @@ public class VMKernel extends UserKernel {
 		 * NOTE: Physical page should be pinned for safety
 		 */
 		void swapIn(int vpn, int pid, int ppn) {
-			swapLock.acquire();
+			swapLock.acquireRead();
 			SwapEntry swapEntry = swapTable.get(new TableKey(vpn, pid));
-			swapLock.release();
+			swapLock.releaseRead();
 			
 			if (swapEntry != null) {
 				// Read in the physical page
+				Trace.begin(Trace.swapIn, vpn);
 				Lib.assertTrue(swapFile.read(swapEntry.swapPageNumber * Processor.pageSize,
 						Machine.processor().getMemory(),
 						ppn * Processor.pageSize,
 						Processor.pageSize) == Processor.pageSize);
+				Trace.end(Trace.swapIn, vpn);
 
 				// Restore permissions
 				//We don't need to acquire a lock because the page is already pinned
@@ -414,9 +946,9 @@ public class VMKernel extends UserKernel {
 		 * @return True if the given page is in the swap file
 		 */
 		boolean pageInSwap(int vpn, int pid) {
-			swapLock.acquire();
+			swapLock.acquireRead();
 			boolean retBool = swapTable.containsKey(new TableKey(vpn, pid));
-			swapLock.release();
+			swapLock.releaseRead();
 			return retBool;
 		}
 
@@ -426,12 +958,39 @@ public class VMKernel extends UserKernel {
 		 * @param maxVPN: the highest VPN of the process + 1
 		 */
 		void freePages(int maxVPN, int pid) {
-			swapLock.acquire();
-			SwapEntry freeEntry;
+			swapLock.acquireWrite();
 			for (int i = 0; i < maxVPN; i++)
-				if ((freeEntry = swapTable.get(new TableKey(i, pid))) != null)
-					freeList.add(freeEntry);
-			swapLock.release();
+				release(swapTable.remove(new TableKey(i, pid)));
+			swapLock.releaseWrite();
+		}
+
+		/**
+		 * Share a process's swapped pages with a forked child.
+		 * @param maxVPN: the highest VPN of the process + 1
+		 */
+		void forkPages(int parentPID, int childPID, int maxVPN) {
+			swapLock.acquireWrite();
+			SwapEntry swapEntry;
+			for (int i = 0; i < maxVPN; i++) {
+				TableKey childKey = new TableKey(i, childPID);
+				//The child may already have it if a shared page was just swapped out
+				if ((swapEntry = swapTable.get(new TableKey(i, parentPID))) != null
+						&& !swapTable.containsKey(childKey)) {
+					swapEntry.references++;
+					swapTable.put(childKey, swapEntry);
+				}
+			}
+			swapLock.releaseWrite();
+		}
+
+		/**
+		 * Drop a reference to a position in the swap file, putting it on the free
+		 * list once nothing refers to it. Must be called with the swap lock held
+		 * exclusively.
+		 */
+		private void release(SwapEntry swapEntry) {
+			if (swapEntry != null && --swapEntry.references == 0)
+				freeList.add(swapEntry);
 		}
 
 		/**
@@ -450,6 +1009,8 @@ public class VMKernel extends UserKernel {
 			}
 			int swapPageNumber;
 			boolean readOnly;
+			/** The number of processes whose page is swapped here. */
+			int references = 0;
 		}
 
 		/** Reference to file which contains swapped out pages 
@@ -463,8 +1024,12 @@ public class VMKernel extends UserKernel {
 		/** Mapping between process pages and where they reside in the swap file */
 		private HashMap<TableKey, SwapEntry> swapTable = new HashMap<TableKey, SwapEntry>();
 
-		/** A <tt>Lock</tt> to ensure exclusive access to swapping methods. */
-		private Lock swapLock = new Lock();
+		/**
+		 * A <tt>ReadWriteLock</tt> to protect the swap table. Lookups share it,
+		 * allocations and frees hold it exclusively.
+		 */
+		private ReadWriteLock swapLock = new ReadWriteLock("VMKernel.swapLock",
+				true);
 	}
 
 	private Swap swap;
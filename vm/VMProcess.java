@@ -1,7 +1,6 @@
 package nachos.vm;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Random;
 
 import nachos.machine.*;
@@ -48,11 +47,26 @@ public class VMProcess extends UserProcess {
 	 * demand-paged.
 	 * 
 	 * Thunk the <tt>CoffSection</tt>s and the stack pages. The arguments are thunked in a later method.
+	 * The writable sections are instead shared copy-on-write with the executable's template, which is
+	 * made first if the executable doesn't have one.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	@Override
 	protected boolean loadSections() {
+		VMKernel.Template template = null;
+		if (UserKernel.processTemplates) {
+			template = (VMKernel.Template) image.getTemplate();
+			if (template == null) {
+				template = kernel.createTemplate(allocatePID(), coff);
+				//Another process may have made one meanwhile
+				if (!UserKernel.execCache.attachTemplate(image, template)) {
+					template.discard();
+					template = (VMKernel.Template) image.getTemplate();
+				}
+			}
+		}
+
 		//Thunk the coff sections
 		int topVPN = 0;
 		for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
@@ -62,6 +76,8 @@ public class VMProcess extends UserProcess {
 
 			//map all of its VPNs to it
 			topVPN += section.getLength();
+			if (template != null && !section.isReadOnly())
+				continue;
 			for (int i = section.getFirstVPN(); i < topVPN; i++) {
 				constructor = new CoffConstructor(section, i);
 				thunkedSections.put(i, constructor);
@@ -72,12 +88,16 @@ public class VMProcess extends UserProcess {
 		for (; topVPN < numPages - 1; topVPN++)
 			thunkedSections.put(topVPN, new StackConstructor(topVPN));
 
+		if (template != null)
+			kernel.forkPages(template.pid, PID, template.maxVPN);
+
 		return true;
 	}
 	
 	@Override
 	protected void unloadSections() {
 		kernel.freePages(PID, numPages);
+		releaseExecutable();
 	}
 
 	@Override
@@ -85,6 +105,155 @@ public class VMProcess extends UserProcess {
 		thunkedSections.put(numPages - 1, new ArgConstructor(entryOffset, stringOffset, argv));
 	}
 
+	private static final int syscallRead = 6, syscallWrite = 7, syscallMmap = 10,
+	syscallReadv = 13, syscallWritev = 14, syscallFork = 15;
+
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * @param syscall
+	 *            the syscall number.
+	 * @param a0
+	 *            the first syscall argument.
+	 * @param a1
+	 *            the second syscall argument.
+	 * @param a2
+	 *            the third syscall argument.
+	 * @param a3
+	 *            the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	@Override
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallFork:
+			return handleFork();
+		case syscallRead:
+		case syscallWrite:
+		case syscallReadv:
+		case syscallWritev:
+			//A mapped file can only be accessed through its mapping until it is closed
+			if (fileMappings.containsKey(a0))
+				return -1;
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * The syscall handler for the mmap syscall. Maps the whole file at a page
+	 * aligned address above the rest of the address space; the pages are read
+	 * from the file as they are touched.
+	 * @param fileDesc
+	 * @param address
+	 * @return the length of the file, or -1 on error
+	 */
+	private int handleMmap(int fileDesc, int address) {
+		if (!validFileDescriptor(fileDesc) || fileMappings.containsKey(fileDesc))
+			return -1;
+		if (Processor.offsetFromAddress(address) != 0)
+			return -1;
+
+		//Streams can't be mapped
+		int length = fileTable[fileDesc].length();
+		if (length < 0)
+			return -1;
+
+		//The mapping may not overlap the program, another mapping, or the end of memory
+		int firstVPN = Processor.pageFromAddress(address);
+		int pages = (int) (((long) length + pageSize - 1) / pageSize);
+		if (firstVPN < numPages || (long) firstVPN + pages > Processor.maxPages)
+			return -1;
+		for (VMKernel.FileMapping mapping : fileMappings.values())
+			if (firstVPN < mapping.firstVPN + mapping.numPages && mapping.firstVPN < firstVPN + pages)
+				return -1;
+
+		fileMappings.put(fileDesc, kernel.mapFile(PID, firstVPN, fileTable[fileDesc], length));
+		return length;
+	}
+
+	/**
+	 * The syscall handler for the fork syscall. The child shares all of this
+	 * process's pages copy-on-write, and gets its own thunks for the pages
+	 * that haven't been loaded yet. Mapped files are not inherited.
+	 * @return the PID of the child
+	 */
+	private int handleFork() {
+		VMProcess child = (VMProcess) newUserProcess();
+		child.coff = coff;
+		child.image = UserKernel.execCache.retain(image);
+		child.executableId = executableId;
+		child.numPages = numPages;
+
+		for (Integer vpn : thunkedSections.keySet())
+			child.thunkedSections.put(vpn, thunkedSections.get(vpn).forChild(child));
+
+		kernel.forkPages(PID, child.PID, numPages);
+
+		return startForkedChild(child);
+	}
+
+	/**
+	 * Close a file, first unmapping it if it is mapped so that its dirty
+	 * pages are written back.
+	 */
+	@Override
+	protected int handleClose(int fileDesc) {
+		VMKernel.FileMapping mapping = fileMappings.remove(fileDesc);
+		if (mapping != null)
+			kernel.unmapFile(mapping);
+
+		return super.handleClose(fileDesc);
+	}
+
+	/**
+	 * A mapped file can only be accessed through its mapping until it is
+	 * closed, including by asynchronous I/O.
+	 */
+	@Override
+	protected OpenFile fileForTransfer(int fileDesc) {
+		if (fileMappings.containsKey(fileDesc))
+			return null;
+		return super.fileForTransfer(fileDesc);
+	}
+
+	/**
+	 * Addresses in mapped files are valid as well as those in the program.
+	 */
+	@Override
+	protected boolean validAddress(int vaddr) {
+		return super.validAddress(vaddr) || mapped(Processor.pageFromAddress(vaddr));
+	}
+
+	/**
+	 * @return True if the virtual page is part of a mapped file
+	 */
+	private boolean mapped(int vpn) {
+		for (VMKernel.FileMapping mapping : fileMappings.values())
+			if (mapping.contains(vpn))
+				return true;
+		return false;
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -101,6 +270,14 @@ public class VMProcess extends UserProcess {
 		case Processor.exceptionTLBMiss:
 			handleTLBMiss(processor.readRegister(processor.regBadVAddr));
 			break;
+		case Processor.exceptionReadOnly:
+			//A write to a page shared since a fork is retried on a private copy
+			pagingLock.acquire();
+			boolean copied = kernel.copyOnWrite(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr)), PID);
+			pagingLock.release();
+			if (!copied)
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
@@ -156,6 +333,35 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * Return the translation of a virtual page, loading it if necessary, and
+	 * copying it first if it is to be written but is shared since a fork. The
+	 * page stays pinned in memory until it is released.
+	 */
+	@Override
+	protected TranslationEntry translatePage(int vpn, boolean write) {
+		if ((vpn < 0 || vpn >= numPages) && !mapped(vpn))
+			return null;
+
+		pagingLock.acquire();
+		TranslationEntry entry = pageIn(vpn);
+		if (write && entry.readOnly) {
+			kernel.unpin(entry.ppn);
+			kernel.copyOnWrite(vpn, PID);
+			entry = pageIn(vpn);
+		}
+		pagingLock.release();
+		return entry;
+	}
+
+	/**
+	 * Unpin a page returned by <tt>translatePage()</tt>.
+	 */
+	@Override
+	protected void releasePage(TranslationEntry entry) {
+		kernel.unpin(entry.ppn);
+	}
+
 	/** A generator for generating random number for TLB replacement. */
 	public Random generator = new Random();
 
@@ -163,94 +369,38 @@ public class VMProcess extends UserProcess {
 	 * Retrieve the TranslationEntry corresponding to the virtual page for this process.
 	 * <p>
 	 * This method will invoke lazy loading or generate a page fault as needed.
+	 * The page will be pinned.
 	 * @param vpn
 	 * @return
 	 */
 	public TranslationEntry retrievePage(int vpn) {
+		pagingLock.acquire();
+		TranslationEntry returnEntry = pageIn(vpn);
+		pagingLock.release();
+		return returnEntry;
+	}
+
+	/**
+	 * Retrieve and pin a page, as for <tt>retrievePage()</tt>. Must be called with
+	 * the paging lock held.
+	 */
+	private TranslationEntry pageIn(int vpn) {
 		TranslationEntry returnEntry = null;
 
 		//Check if we need to lazy load it
 		if (thunkedSections.containsKey(vpn))
 			returnEntry = thunkedSections.get(vpn).execute();
-		else if ((returnEntry = kernel.pinIfExists(vpn, PID)) == null)//check to see if it exists in the mapping
+		else if ((returnEntry = kernel.pinIfExists(vpn, PID)) == null) {//check to see if it exists in the mapping
 			//We need to pagefault
+			Trace.begin(Trace.pageFault, vpn);
 			returnEntry = kernel.pageFault(vpn, PID);
+			Trace.end(Trace.pageFault, vpn);
+		}
 
 		Lib.assertTrue(returnEntry != null);
 		return returnEntry;
 	}
 
-	@Override
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		int bytesRead = 0;
-		LinkedList<VMMemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.READ, true);
-
-		//Execute them if they were successfully created
-		if (memoryAccesses != null) {
-			int temp;
-			for (VMMemoryAccess vma : memoryAccesses) {
-				temp = vma.executeAccess();
-				if (temp == 0)
-					break;
-				else
-					bytesRead += temp;
-			}
-		}
-
-		return bytesRead;
-	}
-
-	@Override
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		return writeVirtualMemory(vaddr, data, offset, length, true);
-	}
-
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean unpin) {
-		int bytesWritten = 0;
-		LinkedList<VMMemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.WRITE, unpin);
-
-		//Execute them if they were successfully created
-		if (memoryAccesses != null) {
-			int temp;
-			for (VMMemoryAccess vma : memoryAccesses) {
-				temp = vma.executeAccess();
-				if (temp == 0)
-					break;
-				else
-					bytesWritten += temp;
-			}
-		}
-
-		return bytesWritten;
-	}
-
-	public int writeVirtualMemory(int vaddr, byte[] data, boolean unpin) {
-		return VMProcess.this.writeVirtualMemory(vaddr, data, 0, data.length, unpin);
-	}
-
-	public LinkedList<VMMemoryAccess> createMemoryAccesses(int vaddr, byte[] data, int offset, int length, AccessType accessType, boolean unpin) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-		LinkedList<VMMemoryAccess> returnList  = null;
-
-		if (validAddress(vaddr)) {
-			returnList = new LinkedList<VMMemoryAccess>();
-
-			while (length > 0) {
-				int vpn = Processor.pageFromAddress(vaddr);
-
-				int potentialPageAccess = Processor.pageSize - Processor.offsetFromAddress(vaddr);
-				int accessSize = length < potentialPageAccess ? length : potentialPageAccess;
-
-				returnList.add(new VMMemoryAccess(accessType, data, vpn, offset, Processor.offsetFromAddress(vaddr), accessSize, unpin));
-				length -= accessSize;
-				vaddr += accessSize;
-				offset += accessSize;
-			}
-		}
-
-		return returnList;
-	}
-
 	public static final int pageSize = Processor.pageSize;
 	public static final char dbgProcess = 'a';
 	public static final char dbgVM = 'v';
@@ -260,29 +410,15 @@ public class VMProcess extends UserProcess {
 
 	public HashMap<Integer,Constructor> thunkedSections = new HashMap<Integer,Constructor>();
 
-	protected class VMMemoryAccess extends UserProcess.MemoryAccess {
-		VMMemoryAccess(AccessType at, byte[] d, int _vpn, int dStart, int pStart, int len, boolean _unpin) {
-			super(at,d,_vpn,dStart,pStart,len);
-			unpin = _unpin;
-		}
-
-		@Override
-		public int executeAccess() {
-			//Overwrite the translationEntry with a new one
-			translationEntry = retrievePage(vpn);//page should be pinned
-
-			int bytesAccessed = super.executeAccess();
-
-			//unpin the page when we're done
-			if (unpin)
-				kernel.unpin(translationEntry.ppn);
-
-			return bytesAccessed;
-		}
+	/**
+	 * Held while one of this process's pages is being found or loaded. The I/O workers of an
+	 * <tt>io_enter()</tt> touch the process's memory alongside the process itself, and a page
+	 * must not be loaded twice, or used before it is loaded.
+	 */
+	private Lock pagingLock = new Lock("VMProcess.pagingLock");
 
-		/** A bit to indicate whether the access should unpin the page when it is finished. */
-		public boolean unpin;
-	}
+	/** The mapped files, by file descriptor. */
+	private HashMap<Integer,VMKernel.FileMapping> fileMappings = new HashMap<Integer,VMKernel.FileMapping>();
 
 	/**
 	 * A class to thunk the initialization of pages
@@ -290,6 +426,9 @@ public class VMProcess extends UserProcess {
 	 */
 	public abstract class Constructor {
 		abstract TranslationEntry execute();
+
+		/** @return the same thunk for a forked child */
+		abstract Constructor forChild(VMProcess child);
 	}
 
 	public class CoffConstructor extends Constructor {
@@ -300,8 +439,13 @@ public class VMProcess extends UserProcess {
 
 		@Override
 		TranslationEntry execute() {
-			//Also, remove yourself from all the thunked section mappings you're in
 			int sectionNumber = vpn - coffSection.getFirstVPN();
+
+			//Read-only pages are shared by every process running the executable, so this thunk stays
+			if (coffSection.isReadOnly())
+				return kernel.sharedTextPage(executableId, coffSection, sectionNumber, vpn, PID);
+
+			//Also, remove yourself from all the thunked section mappings you're in
 			Lib.assertTrue(thunkedSections.remove(vpn) != null);
 			
 			//Get a free page
@@ -313,6 +457,11 @@ public class VMProcess extends UserProcess {
 			return returnEntry;
 		}
 
+		@Override
+		Constructor forChild(VMProcess child) {
+			return child.new CoffConstructor(coffSection, vpn);
+		}
+
 		public CoffSection coffSection;
 		public int vpn;
 	}
@@ -332,6 +481,11 @@ public class VMProcess extends UserProcess {
 			return te;
 		}
 
+		@Override
+		Constructor forChild(VMProcess child) {
+			return child.new StackConstructor(vpn);
+		}
+
 		public int vpn;
 	}
 
@@ -346,22 +500,29 @@ public class VMProcess extends UserProcess {
 
 			TranslationEntry te = kernel.requestFreePage(numPages - 1, PID);//get a free page
 
-			//The page is pinned, so just use writeVM to load in the info
+			//The arguments all fit in this page, and it is pinned, so write them straight into it
+			byte[] memory = Machine.processor().getMemory();
+			int base = te.ppn * pageSize;
 			for (int i = 0; i < argv.length; i++) {
-				byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-				Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes, false) == 4);
+				Lib.bytesFromInt(memory, base + Processor.offsetFromAddress(entryOffset), stringOffset);
 				entryOffset += 4;
-				Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i], false) == argv[i].length);
+				System.arraycopy(argv[i], 0, memory, base + Processor.offsetFromAddress(stringOffset), argv[i].length);
 				stringOffset += argv[i].length;
-				Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }, false) == 1);
+				memory[base + Processor.offsetFromAddress(stringOffset)] = 0;
 				stringOffset += 1;
 			}
+			te.used = te.dirty = true;
 			
 			te.readOnly = true;
 			
 			return te;
 		}
 
+		@Override
+		Constructor forChild(VMProcess child) {
+			return child.new ArgConstructor(entryOffset, stringOffset, argv);
+		}
+
 		public int entryOffset, stringOffset;
 		public byte[][] argv;
 	}